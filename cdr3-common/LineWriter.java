@@ -0,0 +1,92 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output pipeline of BuildHammingNet and AlignCdrAux: worker threads put batches of lines to a bounded queue,
+ * blocking when the writer falls behind, and a single writer thread drains all available batches at once to a
+ * large buffer. Output is gzipped if the file name ends with .gz.
+ */
+class LineWriter implements AutoCloseable {
+    static final int BATCH_SIZE = 4096, QUEUE_CAPACITY = 1024;
+    private static final List<String> END_OF_STREAM = new ArrayList<>(); // compared by identity
+
+    private final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Writer writer;
+    private final Thread writeThread;
+    private volatile IOException error;
+
+    LineWriter(File file, String header) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        if (file.getName().endsWith(".gz")) {
+            os = new GZIPOutputStream(os, 1 << 16);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 20);
+        writer.write(header);
+        writer.write('\n');
+
+        this.writeThread = new Thread(() -> {
+            List<List<String>> batches = new ArrayList<>();
+            try {
+                while (true) {
+                    batches.add(queue.take());
+                    queue.drainTo(batches);
+                    for (List<String> batch : batches) {
+                        if (batch == END_OF_STREAM) {
+                            return;
+                        }
+                        if (error == null) {
+                            try {
+                                for (String line : batch) {
+                                    writer.write(line);
+                                    writer.write('\n');
+                                }
+                            } catch (IOException e) {
+                                error = e; // keep draining so that workers are not blocked
+                            }
+                        }
+                    }
+                    batches.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writeThread.start();
+    }
+
+    /**
+     * Queues a batch of lines, blocks if the queue is full. The batch should not be modified afterwards.
+     */
+    void put(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END_OF_STREAM);
+            writeThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            writer.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
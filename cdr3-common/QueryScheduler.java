@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Query scheduler of BuildHammingNet and AlignCdrAux: runs queries from the most to the least expensive one with
+ * a given number of worker threads. Workers take batches of BATCH_SIZE queries from a shared cursor over the
+ * cost-sorted order, so long-running queries are started first and cheap ones fill the remaining time of other
+ * workers. Worker threads are kept until the scheduler is closed, so it can be reused for many query sets.
+ */
+class QueryScheduler implements AutoCloseable {
+    static final int BATCH_SIZE = 16, MAX_LENGTH = 255;
+
+    final int threads;
+    private final ForkJoinPool pool;
+
+    QueryScheduler(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads should be positive.");
+        }
+        this.threads = threads;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Relative cost of a query: number of cdr3 sequences it can be compared to times the number of ways
+     * to place mutations in a cdr3 of a given length.
+     */
+    static double getCost(int length, int density, int maxSubstitutions, int maxIndels) {
+        return (double) density * Math.pow(length, maxSubstitutions + maxIndels);
+    }
+
+    /**
+     * Number of cdr3 sequences with length within maxIndels of a given one.
+     */
+    static int countWithin(int[] lengthCounts, int length, int maxIndels) {
+        int count = 0;
+        for (int l = Math.max(0, length - maxIndels); l <= Math.min(MAX_LENGTH, length + maxIndels); l++) {
+            count += lengthCounts[l];
+        }
+        return count;
+    }
+
+    void run(int[] queries, double[] costs, IntConsumer query) {
+        start(queries, costs, query).join();
+    }
+
+    /**
+     * Starts running queries and returns immediately, the returned task completes once all of them are done.
+     */
+    ForkJoinTask<?> start(int[] queries, double[] costs, IntConsumer query) {
+        Integer[] order = new Integer[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> Double.compare(costs[i2], costs[i1]));
+
+        AtomicInteger next = new AtomicInteger();
+        List<ForkJoinTask<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(ForkJoinTask.adapt(() -> {
+                int from;
+                while ((from = next.getAndAdd(BATCH_SIZE)) < order.length) {
+                    for (int i = from; i < Math.min(from + BATCH_SIZE, order.length); i++) {
+                        query.accept(queries[order[i]]);
+                    }
+                }
+            }));
+        }
+        return pool.submit(() -> {
+            ForkJoinTask.invokeAll(workers);
+        });
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Nested search thresholds of BuildHammingNet and AlignCdrAux, from the tightest to the loosest one, which is the
+ * one used for the search. Results are reported once for each threshold they satisfy, tagged with its index, so
+ * that results of a single threshold are the ones of a separate search with it.
+ */
+class Thresholds {
+    final int[] substitutions, indels;
+
+    Thresholds(String thresholds, int maxSubstitutions, int maxIndels) {
+        List<int[]> values = new ArrayList<>();
+        if (thresholds != null) {
+            for (String threshold : thresholds.split(",")) {
+                String[] splitThreshold = threshold.split(":");
+                values.add(new int[]{Integer.parseInt(splitThreshold[0]), Integer.parseInt(splitThreshold[1])});
+            }
+        }
+        if (values.isEmpty() || values.get(values.size() - 1)[0] != maxSubstitutions ||
+                values.get(values.size() - 1)[1] != maxIndels) {
+            values.add(new int[]{maxSubstitutions, maxIndels});
+        }
+
+        this.substitutions = new int[values.size()];
+        this.indels = new int[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            substitutions[i] = values.get(i)[0];
+            indels[i] = values.get(i)[1];
+            if (i > 0 && (substitutions[i] < substitutions[i - 1] || indels[i] < indels[i - 1])) {
+                throw new IllegalArgumentException("Thresholds should be nested, from the tightest one " +
+                        "to the search parameters.");
+            }
+        }
+    }
+
+    int size() {
+        return substitutions.length;
+    }
+
+    /**
+     * Returns the index of the tightest threshold satisfied, or -1 if none is.
+     */
+    int getTightest(int subst, int ins, int del) {
+        for (int i = 0; i < substitutions.length; i++) {
+            if (subst <= substitutions[i] && ins <= indels[i] && del <= indels[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    String getLabel(int threshold) {
+        return substitutions[threshold] + ":" + indels[threshold];
+    }
+}
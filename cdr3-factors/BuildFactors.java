@@ -1,84 +1,206 @@
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 /**
  * Created by mikesh on 9/7/17.
  */
 public class BuildFactors {
     private static final int CDR3AA_COL = 3,
-            READS_COL = 0;
+            READS_COL = 0,
+            V_COL = 4,
+            J_COL = 6;
 
     public static void main(String[] args) throws IOException {
         String[] sampleFileNames = args[0].split(",");
 
-        int nSamples = sampleFileNames.length;
+        Map<String, String> options = parseOptions(args, 2);
 
-        // Read the list of public clonotypes
+        String cacheDir = options.get("cache-dir");
+        FactorCache cache = cacheDir == null ? null : new FactorCache(new File(cacheDir));
 
-        BufferedReader br;
-        String line;
-
-        List<Map<String, Counter>> table = new ArrayList<>();
-        List<Counter> sampleTotals = new ArrayList<>();
-
-        for (int i = 0; i < sampleFileNames.length; i++) {
-            Map<String, Counter> sampleTable = new HashMap<>();
-            Counter sampleTotal = new Counter();
-
-            br = new BufferedReader(new FileReader(sampleFileNames[i]));
-
-            br.readLine(); // skip header
+        String kmerSize = options.get("k"), stratify = options.getOrDefault("stratify", "");
+        if (!Arrays.asList("", "none", "v", "j", "vj").contains(stratify)) {
+            throw new IllegalArgumentException("Bad --stratify value '" + stratify + "', should be none, v, j or vj.");
+        }
+        if (stratify.equals("none")) {
+            stratify = "";
+        }
+        if (kmerSize != null || !stratify.isEmpty()) {
+            if (cache != null) {
+                throw new IllegalArgumentException("Factor cache is not supported for k-mer profiles.");
+            }
+            buildKmerProfiles(sampleFileNames, args[1], Integer.parseInt(kmerSize == null ? "1" : kmerSize),
+                    stratify.contains("v"), stratify.contains("j"));
+            return;
+        }
 
-            while ((line = br.readLine()) != null) {
-                String[] splitLine = line.split("\t");
-                String cdr3aa = splitLine[CDR3AA_COL];
-                int len = cdr3aa.length();
-                int reads = Integer.parseInt(splitLine[READS_COL]);
-
-                for (int j = 0; j < len; j++) {
-                    String signature = len + "\t" + j + "\t" + cdr3aa.charAt(j);
-                    Counter counter = sampleTable.computeIfAbsent(signature, k -> new Counter());
-                    counter.reads += reads;
-                    counter.unique++;
+        // Scan samples in parallel, each into its own factor table, unchanged samples are loaded from cache
+
+        FactorTable[] tables = new FactorTable[sampleFileNames.length];
+        AtomicInteger scanned = new AtomicInteger(), cached = new AtomicInteger();
+
+        IntStream.range(0, sampleFileNames.length).parallel().forEach(i -> {
+            try {
+                File sample = new File(sampleFileNames[i]);
+                tables[i] = cache == null ? null : cache.load(sample);
+                if (tables[i] != null) {
+                    cached.incrementAndGet();
+                } else {
+                    tables[i] = scan(sampleFileNames[i]);
+                    if (cache != null) {
+                        cache.store(sample, tables[i]);
+                    }
                 }
-
-                sampleTotal.unique++;
-                sampleTotal.reads += reads;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
 
-            table.add(sampleTable);
-            sampleTotals.add(sampleTotal);
-
-            if (i % 10 == 0) {
-                System.out.println("[" + (new Date()).toString() + "] Scanned " + i + " of " +
+            int count = scanned.incrementAndGet();
+            if (count % 10 == 0) {
+                System.out.println("[" + (new Date()).toString() + "] Scanned " + count + " of " +
                         sampleFileNames.length +
                         " samples.");
             }
+        });
+
+        if (cache != null) {
+            System.out.println("[" + (new Date()).toString() + "] Loaded " + cached.get() + " of " +
+                    sampleFileNames.length + " samples from cache.");
         }
 
         try (PrintWriter pw = new PrintWriter(args[1])) {
             pw.println("sample\tlen\tpos\taa\tunique\treads\tunique.total\treads.total");
             for (int i = 0; i < sampleFileNames.length; i++) {
-                Map<String, Counter> sampleTable = table.get(i);
-                Counter sampleTotal = sampleTotals.get(i);
+                tables[i].write(i, pw);
+            }
+        }
+    }
 
-                for (Map.Entry<String, Counter> entry : sampleTable.entrySet()) {
-                    pw.println(i + "\t" + entry.getKey() + "\t" + entry.getValue() + "\t" + sampleTotal);
+    static void buildKmerProfiles(String[] sampleFileNames, String outputFileName, int k,
+                                  boolean stratifyV, boolean stratifyJ) throws IOException {
+        KmerTable[] tables = new KmerTable[sampleFileNames.length];
+        AtomicInteger scanned = new AtomicInteger();
+
+        IntStream.range(0, sampleFileNames.length).parallel().forEach(i -> {
+            KmerTable table = new KmerTable(k, stratifyV, stratifyJ);
+
+            try {
+                File sample = new File(sampleFileNames[i]);
+                if (ColumnarSample.isColumnar(sample)) {
+                    ColumnarSample columnarSample = ColumnarSample.open(sample);
+                    String[] cdr3aa = decode(columnarSample.cdr3aa), v = decode(columnarSample.v),
+                            j = decode(columnarSample.j);
+                    for (int row = 0; row < columnarSample.rows; row++) {
+                        table.add(cdr3aa[columnarSample.getCdr3aaId(row)],
+                                v[columnarSample.getVId(row)], j[columnarSample.getJId(row)],
+                                columnarSample.getCount(row));
+                    }
+                } else {
+                    try (BufferedReader br = new BufferedReader(new FileReader(sample))) {
+                        String line;
+
+                        br.readLine(); // skip header
+
+                        while ((line = br.readLine()) != null) {
+                            table.add(getField(line, CDR3AA_COL),
+                                    stratifyV ? getField(line, V_COL) : null,
+                                    stratifyJ ? getField(line, J_COL) : null,
+                                    Integer.parseInt(getField(line, READS_COL)));
+                        }
+                    }
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            tables[i] = table;
+
+            if (table.skipped > 0) {
+                System.out.println("[" + (new Date()).toString() + "] WARNING: skipped " + table.skipped +
+                        " clonotypes with unsupported cdr3 length or amino acids in " + sampleFileNames[i] + ".");
+            }
+
+            int count = scanned.incrementAndGet();
+            if (count % 10 == 0) {
+                System.out.println("[" + (new Date()).toString() + "] Scanned " + count + " of " +
+                        sampleFileNames.length +
+                        " samples for " + k + "-mer profiles.");
+            }
+        });
+
+        try (PrintWriter pw = new PrintWriter(outputFileName)) {
+            pw.println(new KmerTable(k, stratifyV, stratifyJ).getHeader());
+            for (int i = 0; i < sampleFileNames.length; i++) {
+                tables[i].write(i, pw);
             }
         }
     }
 
-    static class Counter {
-        int unique;
-        long reads;
+    static FactorTable scan(String fileName) throws IOException {
+        FactorTable table = new FactorTable();
+
+        if (ColumnarSample.isColumnar(new File(fileName))) {
+            ColumnarSample sample = ColumnarSample.open(new File(fileName));
+            String[] cdr3aa = decode(sample.cdr3aa);
+            for (int row = 0; row < sample.rows; row++) {
+                table.add(cdr3aa[sample.getCdr3aaId(row)], sample.getCount(row));
+            }
+            return table;
+        }
+
+        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+            String line;
+
+            br.readLine(); // skip header
+
+            while ((line = br.readLine()) != null) {
+                table.add(getField(line, CDR3AA_COL), Integer.parseInt(getField(line, READS_COL)));
+            }
+        }
 
-        @Override
-        public String toString() {
-            return unique + "\t" + reads;
+        return table;
+    }
+
+    private static String[] decode(ColumnarSample.Dictionary dictionary) {
+        String[] values = new String[dictionary.size];
+        for (int id = 0; id < dictionary.size; id++) {
+            values[id] = dictionary.get(id);
+        }
+        return values;
+    }
+
+    private static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Bad option '" + args[i] + "', should be --name=value.");
+            }
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                options.put(args[i].substring(2), "true");
+            } else {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    private static String getField(String line, int column) {
+        int start = 0;
+        for (int i = 0; i < column; i++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) {
+                throw new IllegalArgumentException("Too few columns in line '" + line + "'.");
+            }
         }
+        int end = line.indexOf('\t', start);
+        return line.substring(start, end < 0 ? line.length() : end);
     }
 }
@@ -0,0 +1,67 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Directory of per-sample binary factor tables, so that unchanged samples are not re-scanned on later runs.
+ * <p>
+ * Each cache file is keyed by the absolute path of the sample and holds the sample file size and modification
+ * time it was built from, a stale or foreign file is treated as a miss and overwritten.
+ */
+class FactorCache {
+    static final int MAGIC = 0x42464332; // "BFC2"
+
+    final File dir;
+
+    FactorCache(File dir) throws IOException {
+        this.dir = dir;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create cache directory " + dir);
+        }
+    }
+
+    File getCacheFile(File sample) {
+        String path = sample.getAbsolutePath();
+        return new File(dir, sample.getName() + "." + Integer.toHexString(path.hashCode()) + ".factors");
+    }
+
+    /**
+     * Returns cached factor table of a given sample, or null if it is absent or outdated.
+     */
+    FactorTable load(File sample) throws IOException {
+        File cacheFile = getCacheFile(sample);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+            if (is.readInt() != MAGIC ||
+                    !is.readUTF().equals(FactorTable.ALPHABET) ||
+                    !is.readUTF().equals(sample.getAbsolutePath()) ||
+                    is.readLong() != sample.length() ||
+                    is.readLong() != sample.lastModified()) {
+                return null;
+            }
+            return FactorTable.read(is);
+        } catch (EOFException e) {
+            return null; // truncated
+        }
+    }
+
+    void store(File sample, FactorTable table) throws IOException {
+        File tmp = File.createTempFile(sample.getName(), ".tmp", dir);
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(MAGIC);
+            os.writeUTF(FactorTable.ALPHABET);
+            os.writeUTF(sample.getAbsolutePath());
+            os.writeLong(sample.length());
+            os.writeLong(sample.lastModified());
+            table.write(os);
+        }
+
+        Files.move(tmp.toPath(), getCacheFile(sample).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-sample amino acid usage counters, stored as a dense tensor indexed by CDR3 length, position and amino acid.
+ * <p>
+ * Tensor slice of length len holds len x ALPHABET_SIZE counters and starts at {@link #offset(int)}, so that
+ * only valid positions are stored. Rare symbols outside the alphabet are counted separately, in a sparse map.
+ */
+class FactorTable {
+    static final String ALPHABET = "ACDEFGHIKLMNPQRSTVWY*_~X";
+    static final int ALPHABET_SIZE = ALPHABET.length();
+    private static final byte[] CODES = new byte[128];
+
+    static {
+        Arrays.fill(CODES, (byte) -1);
+        for (int i = 0; i < ALPHABET_SIZE; i++) {
+            CODES[ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    int maxLen;
+    int[] unique = new int[0];
+    long[] reads = new long[0];
+    int uniqueTotal;
+    long readsTotal;
+
+    // {unique, reads} of symbols outside the alphabet keyed by length, position and symbol, see otherKey()
+    final TreeMap<Long, long[]> other = new TreeMap<>();
+
+    static int offset(int len) {
+        return len * (len - 1) / 2 * ALPHABET_SIZE;
+    }
+
+    /**
+     * Returns the alphabet code of a symbol, or -1 if it is not in the alphabet.
+     */
+    static int getCode(char aa) {
+        return aa < 128 ? CODES[aa] : -1;
+    }
+
+    private static long otherKey(int len, int pos, char aa) {
+        return ((long) len << 48) | ((long) pos << 16) | aa;
+    }
+
+    void add(String cdr3aa, int count) {
+        int len = cdr3aa.length();
+
+        if (len > maxLen) {
+            int size = offset(len + 1);
+            unique = Arrays.copyOf(unique, size);
+            reads = Arrays.copyOf(reads, size);
+            maxLen = len;
+        }
+
+        for (int j = 0, index = offset(len); j < len; j++, index += ALPHABET_SIZE) {
+            char aa = cdr3aa.charAt(j);
+            int code = getCode(aa);
+            if (code < 0) {
+                long[] counter = other.computeIfAbsent(otherKey(len, j, aa), key -> new long[2]);
+                counter[0]++;
+                counter[1] += count;
+                continue;
+            }
+            unique[index + code]++;
+            reads[index + code] += count;
+        }
+
+        uniqueTotal++;
+        readsTotal += count;
+    }
+
+    void write(int sample, PrintWriter pw) {
+        String total = uniqueTotal + "\t" + readsTotal;
+        for (int len = 1; len <= maxLen; len++) {
+            for (int j = 0, index = offset(len); j < len; j++) {
+                for (int code = 0; code < ALPHABET_SIZE; code++, index++) {
+                    if (unique[index] > 0) {
+                        pw.println(sample + "\t" + len + "\t" + j + "\t" + ALPHABET.charAt(code) + "\t" +
+                                unique[index] + "\t" + reads[index] + "\t" + total);
+                    }
+                }
+                for (Map.Entry<Long, long[]> entry :
+                        other.subMap(otherKey(len, j, (char) 0), otherKey(len, j + 1, (char) 0)).entrySet()) {
+                    pw.println(sample + "\t" + len + "\t" + j + "\t" + (char) (entry.getKey() & 0xFFFF) + "\t" +
+                            entry.getValue()[0] + "\t" + entry.getValue()[1] + "\t" + total);
+                }
+            }
+        }
+    }
+
+    void write(DataOutputStream os) throws IOException {
+        os.writeInt(maxLen);
+        os.writeInt(uniqueTotal);
+        os.writeLong(readsTotal);
+        for (int i = 0; i < unique.length; i++) {
+            os.writeInt(unique[i]);
+            os.writeLong(reads[i]);
+        }
+        os.writeInt(other.size());
+        for (Map.Entry<Long, long[]> entry : other.entrySet()) {
+            os.writeLong(entry.getKey());
+            os.writeLong(entry.getValue()[0]);
+            os.writeLong(entry.getValue()[1]);
+        }
+    }
+
+    static FactorTable read(DataInputStream is) throws IOException {
+        FactorTable table = new FactorTable();
+        table.maxLen = is.readInt();
+        table.uniqueTotal = is.readInt();
+        table.readsTotal = is.readLong();
+        table.unique = new int[offset(table.maxLen + 1)];
+        table.reads = new long[table.unique.length];
+        for (int i = 0; i < table.unique.length; i++) {
+            table.unique[i] = is.readInt();
+            table.reads[i] = is.readLong();
+        }
+        for (int i = is.readInt(); i > 0; i--) {
+            table.other.put(is.readLong(), new long[]{is.readLong(), is.readLong()});
+        }
+        return table;
+    }
+}
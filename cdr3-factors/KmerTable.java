@@ -0,0 +1,161 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-sample positional k-mer usage counters, optionally stratified by V and J genes.
+ * <p>
+ * Each (V, J, length, position, k-mer) combination is packed into a single non-negative long key, counters
+ * are kept in a primitive open-addressing hash table. Key layout from high to low bits: V id (9), J id (9),
+ * length (7), position (7), k-mer as 5-bit amino acid codes (30), so that sorted keys follow output order.
+ */
+class KmerTable {
+    static final int MAX_K = 6, MAX_LEN = 127, MAX_GENES = 512;
+    private static final long EMPTY = -1L;
+
+    final int k;
+    final boolean stratifyV, stratifyJ;
+
+    private final List<String> vGenes = new ArrayList<>(), jGenes = new ArrayList<>();
+    private final Map<String, Integer> vIds = new HashMap<>(), jIds = new HashMap<>();
+
+    private long[] keys = new long[1024];
+    private int[] unique = new int[1024];
+    private long[] reads = new long[1024];
+    private int size;
+
+    int uniqueTotal, skipped;
+    long readsTotal;
+
+    KmerTable(int k, boolean stratifyV, boolean stratifyJ) {
+        if (k < 1 || k > MAX_K) {
+            throw new IllegalArgumentException("K-mer size should be within 1.." + MAX_K + ".");
+        }
+        this.k = k;
+        this.stratifyV = stratifyV;
+        this.stratifyJ = stratifyJ;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Counts k-mers of a clonotype, clonotypes longer than MAX_LEN or with symbols outside the alphabet are
+     * skipped and counted in {@link #skipped}.
+     */
+    void add(String cdr3aa, String v, String j, int count) {
+        int len = cdr3aa.length();
+        boolean valid = len <= MAX_LEN;
+        for (int pos = 0; valid && pos < len; pos++) {
+            valid = FactorTable.getCode(cdr3aa.charAt(pos)) >= 0;
+        }
+        if (!valid) {
+            skipped++;
+            return;
+        }
+
+        long prefix = ((long) (stratifyV ? intern(v, vGenes, vIds) : 0) << 53) |
+                ((long) (stratifyJ ? intern(j, jGenes, jIds) : 0) << 44) |
+                ((long) len << 37);
+
+        long kmer = 0, mask = (1L << (5 * k)) - 1;
+        for (int pos = 0; pos < len; pos++) {
+            kmer = ((kmer << 5) | FactorTable.getCode(cdr3aa.charAt(pos))) & mask;
+            if (pos >= k - 1) {
+                increment(prefix | ((long) (pos - k + 1) << 30) | kmer, count);
+            }
+        }
+
+        uniqueTotal++;
+        readsTotal += count;
+    }
+
+    private static int intern(String gene, List<String> genes, Map<String, Integer> ids) {
+        Integer id = ids.get(gene);
+        if (id == null) {
+            if (genes.size() == MAX_GENES) {
+                throw new IllegalArgumentException("More than " + MAX_GENES + " distinct genes in a sample.");
+            }
+            id = genes.size();
+            genes.add(gene);
+            ids.put(gene, id);
+        }
+        return id;
+    }
+
+    private void increment(long key, int count) {
+        int slot = find(keys, key);
+        if (keys[slot] == EMPTY) {
+            if (2 * (size + 1) > keys.length) {
+                rehash();
+                slot = find(keys, key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        unique[slot]++;
+        reads[slot] += count;
+    }
+
+    private static int find(long[] keys, long key) {
+        int mask = keys.length - 1,
+                slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(keys.length)));
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys, oldReads = reads;
+        int[] oldUnique = unique;
+
+        keys = new long[oldKeys.length * 2];
+        unique = new int[keys.length];
+        reads = new long[keys.length];
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                unique[slot] = oldUnique[i];
+                reads[slot] = oldReads[i];
+            }
+        }
+    }
+
+    String getHeader() {
+        return "sample\t" + (stratifyV ? "v\t" : "") + (stratifyJ ? "j\t" : "") +
+                "len\tpos\tkmer\tunique\treads\tunique.total\treads.total";
+    }
+
+    void write(int sample, PrintWriter pw) {
+        int[] slots = new int[size];
+        long[] sortedKeys = new long[size];
+        for (int i = 0, n = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                sortedKeys[n++] = keys[i];
+            }
+        }
+        Arrays.sort(sortedKeys);
+        for (int i = 0; i < size; i++) {
+            slots[i] = find(keys, sortedKeys[i]);
+        }
+
+        String total = uniqueTotal + "\t" + readsTotal;
+        char[] kmer = new char[k];
+        for (int slot : slots) {
+            long key = keys[slot];
+            for (int i = k - 1, codes = (int) (key & ((1L << 30) - 1)); i >= 0; i--, codes >>>= 5) {
+                kmer[i] = FactorTable.ALPHABET.charAt(codes & 31);
+            }
+            pw.println(sample + "\t" +
+                    (stratifyV ? vGenes.get((int) (key >>> 53)) + "\t" : "") +
+                    (stratifyJ ? jGenes.get((int) (key >>> 44) & (MAX_GENES - 1)) + "\t" : "") +
+                    ((key >>> 37) & MAX_LEN) + "\t" + ((key >>> 30) & MAX_LEN) + "\t" + new String(kmer) + "\t" +
+                    unique[slot] + "\t" + reads[slot] + "\t" + total);
+        }
+    }
+}
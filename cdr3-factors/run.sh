@@ -1,9 +1,15 @@
-rm BuildFactors.class
-javac BuildFactors.java
+rm -f *.class
+javac -sourcepath .:../vdjtools-bin BuildFactors.java
 
 # Fetch symlinked
 cd ../samples/
-SS=`readlink -f [HK]* | paste -sd "," -`  # all samples
+SS=`readlink -f [HK]* | paste -sd "," -`  # all samples, VDJtools text or converted by vdjtools-bin/run.sh
 cd ..
 
-java -Xmx100G -cp cdr3-factors/ BuildFactors "$SS" factors.txt
\ No newline at end of file
+# optional trailing --name=value options:
+# --cache-dir=DIR   keep per-sample factor tables in DIR, later runs only scan new or modified samples
+# --k=K             positional k-mer profiles (K up to 6) instead of single amino acids, kmer column is the k-mer
+#                   starting at pos
+# --stratify=v|j|vj additionally split k-mer profiles by V and/or J genes
+
+java -Xmx4G -cp cdr3-factors/:vdjtools-bin/ BuildFactors "$SS" factors.txt
\ No newline at end of file
@@ -1,10 +1,10 @@
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
 import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import com.milaboratory.core.alignment.Alignment;
@@ -22,30 +22,69 @@ public class AlignCdrAux {
 
         String inputFileName = args[2], outputFileName = args[3];
 
+        Map<String, String> options = parseOptions(args, 4);
+
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        // Nested thresholds are reported in a single search with the loosest one, the positional parameters
+
+        String thresholdsOption = options.get("thresholds");
+        final Thresholds thresholds = new Thresholds(thresholdsOption, maxSubstitutions, maxIndels);
+
+        // Aggregated mutation profile is written instead of one line per position, which is then optional
+
+        boolean profileMode = Boolean.parseBoolean(options.getOrDefault("profile", "false"));
+        String rawFileName = profileMode ? options.get("raw") : outputFileName;
+
         final Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap = new HashMap<>();
-        try (Stream<String> stream = Files.lines(new File(inputFileName).toPath())) {
-            stream.forEach(line -> {
-                String[] splitString = line.split("\t");
-                cdr3AntigenMap.compute(new AminoAcidSequence(splitString[0]),
-                        (aminoAcidSequence, cdr3Info) -> {
-                            if (cdr3Info == null) {
-                                cdr3Info = new Cdr3Info(aminoAcidSequence,
-                                        Integer.parseInt(splitString[1]),
-                                        Integer.parseInt(splitString[2]),
-                                        splitString[3],
-                                        splitString[5]);
-                            }
-                            cdr3Info.addAntigen(splitString[4]);
-                            return cdr3Info;
-                        });
-            });
-        }
+        load(inputFileName, cdr3AntigenMap);
 
         System.out.println("Loaded " + cdr3AntigenMap.size() + " cdr3 sequences.");
 
-        final SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm = new SequenceTreeMap<>(AminoAcidSequence.ALPHABET);
+        // Cdr3 sequences with unknown antigen are never queried and are indexed separately as background, together
+        // with background repertoires in the same format. Background is downsampled while loading, so that only
+        // kept cdr3 sequences are held in memory, and its hits can be capped for each query
+
+        int backgroundSize = Integer.parseInt(options.getOrDefault("background-size", "-1")),
+                maxBackgroundHits = Integer.parseInt(options.getOrDefault("background-max-hits",
+                        Integer.toString(Integer.MAX_VALUE)));
+        final long backgroundSeed = Long.parseLong(options.getOrDefault("background-seed", "51103"));
 
-        cdr3AntigenMap.entrySet().forEach(kvp -> stm.put(kvp.getKey(), kvp.getValue()));
+        BackgroundSample backgroundSample = new BackgroundSample(backgroundSize < 0 ? Integer.MAX_VALUE :
+                backgroundSize, backgroundSeed);
+
+        List<Cdr3Info> annotated = new ArrayList<>();
+        for (Cdr3Info cdr3Info : cdr3AntigenMap.values()) {
+            if (cdr3Info.unknownAntigen()) {
+                backgroundSample.add(cdr3Info);
+            } else {
+                annotated.add(cdr3Info);
+            }
+        }
+
+        String backgroundFileNames = options.get("background");
+        if (backgroundFileNames != null) {
+            for (String backgroundFileName : backgroundFileNames.split(",")) {
+                loadBackground(backgroundFileName, cdr3AntigenMap, backgroundSample);
+            }
+        }
+
+        List<Cdr3Info> background = backgroundSample.getCdr3Infos();
+
+        System.out.println(annotated.size() + " annotated and " + background.size() + " background cdr3 sequences.");
+
+        // Separate search trees for each gene, and optionally each set, are built in parallel and each cdr3 is
+        // only queried against its own partition
+
+        final boolean partitionBySet = Boolean.parseBoolean(options.getOrDefault("partition-by-set", "false"));
+
+        final Map<Long, SequenceTreeMap<AminoAcidSequence, Cdr3Info>> partitions =
+                buildPartitions(annotated, partitionBySet),
+                backgroundPartitions = buildPartitions(background, partitionBySet);
+
+        System.out.println("Built " + partitions.size() + " search tree partitions and " +
+                backgroundPartitions.size() + " background ones.");
 
         final TreeSearchParameters tsp = new TreeSearchParameters(maxSubstitutions, maxIndels, maxIndels);
 
@@ -54,114 +93,129 @@ public class AlignCdrAux {
                         "align.id\talign.sub.id\t" +
                         "subst\tins\tdel\t" +
                         "mut.type\tmut.pos\tmut.from\tmut.to\t" +
-                        "mut.region\tgene\tset";
+                        "mut.region\tgene\tset" +
+                        (thresholdsOption != null ? "\tthreshold" : "");
 
 
-        try (final PrintWriter pw = new PrintWriter(new File(outputFileName))) {
-            pw.println(header);
-
-            final Queue<String> lines = new ConcurrentLinkedQueue<>();
-
-            Thread writeThread = new Thread(() -> {
-                while (true) {
-                    String value;
-                    while ((value = lines.poll()) != null) {
-                        if (value.equals("END")) {
-                            return;
-                        }
-                        pw.println(value);
-                    }
-                }
-            });
-            writeThread.start();
+        final MutationProfile profile = profileMode ? new MutationProfile(
+                Stream.concat(annotated.stream(), background.stream()).collect(Collectors.toList())) : null;
 
+        try (final LineWriter writer = rawFileName == null ? null : new LineWriter(new File(rawFileName), header)) {
             final AtomicInteger counter = new AtomicInteger(), mutationCounter = new AtomicInteger(),
                     alignmentIdCounter = new AtomicInteger();
 
-            cdr3AntigenMap.values().parallelStream().forEach(thisCdr3Info -> {
+            // Queries are run from the most expensive ones, estimated from cdr3 length and the number of cdr3
+            // sequences with length within indel budget in the same partition
+
+            Map<Long, int[]> lengthCounts = countLengths(annotated, partitionBySet),
+                    backgroundLengthCounts = countLengths(background, partitionBySet);
+            double[] costs = new double[annotated.size()];
+            for (int i = 0; i < annotated.size(); i++) {
+                Cdr3Info cdr3Info = annotated.get(i);
+                long partition = cdr3Info.getPartition(partitionBySet);
+                int length = cdr3Info.cdr3.size(),
+                        density = QueryScheduler.countWithin(lengthCounts.get(partition), length, maxIndels);
+                if (backgroundLengthCounts.containsKey(partition)) {
+                    density += QueryScheduler.countWithin(backgroundLengthCounts.get(partition), length, maxIndels);
+                }
+                costs[i] = QueryScheduler.getCost(length, density, maxSubstitutions, maxIndels);
+            }
+
+            try (QueryScheduler scheduler = new QueryScheduler(threads)) {
+                scheduler.run(IntStream.range(0, annotated.size()).toArray(), costs, query -> {
+                        Cdr3Info thisCdr3Info = annotated.get(query);
                         AminoAcidSequence thisCdr3 = thisCdr3Info.cdr3;
-                        Cdr3Info otherCdr3Info;
-
-                        if (!thisCdr3Info.unknownAntigen()) {
-                            NeighborhoodIterator<AminoAcidSequence, Cdr3Info> iter = stm
-                                    .getNeighborhoodIterator(thisCdr3, tsp);
-
-                            Map<AminoAcidSequence, List<AlignmentInfo>> alignmentVariants = new HashMap<>();
-
-                            while ((otherCdr3Info = iter.next()) != null) {
-                                Alignment<AminoAcidSequence> alignment = iter.getCurrentAlignment();
-
-                                if (thisCdr3Info.eligibleComparison(otherCdr3Info) &&
-                                        alignment.getSequence1Range().length() == thisCdr3.size()) { // enforce global (JIC)
-                                    final AlignmentInfo alignmentInfo = new AlignmentInfo(
-                                            thisCdr3Info.antigensOverlap(otherCdr3Info),
-                                            alignment,
-                                            thisCdr3Info.unknownAntigen() || otherCdr3Info.unknownAntigen());
-
-                                    alignmentVariants.compute(otherCdr3Info.cdr3,
-                                            (cdr3, alignments) -> {
-                                                if (alignments == null) {
-                                                    alignments = new ArrayList<>();
-                                                }
-                                                alignments.add(alignmentInfo);
-                                                return alignments;
-                                            });
-                                }
+
+                        Map<AminoAcidSequence, List<AlignmentInfo>> alignmentVariants = new HashMap<>();
+
+                        long partition = thisCdr3Info.getPartition(partitionBySet);
+                        collectAlignments(thisCdr3Info, partitions.get(partition), tsp,
+                                Integer.MAX_VALUE, backgroundSeed, alignmentVariants);
+                        collectAlignments(thisCdr3Info, backgroundPartitions.get(partition), tsp,
+                                maxBackgroundHits, backgroundSeed, alignmentVariants);
+
+                        List<String> lines = new ArrayList<>();
+
+                        for (List<AlignmentInfo> alignmentInfos : alignmentVariants.values()) {
+                            int alignmentId = alignmentIdCounter.incrementAndGet();
+
+                            // Alignments are reported once for each threshold they satisfy, weight and sub id are
+                            // computed over the alignments satisfying it, as in a separate search with it
+
+                            int[] tightest = new int[alignmentInfos.size()];
+                            for (int j = 0; j < tightest.length; j++) {
+                                AlignmentInfo alignmentInfo = alignmentInfos.get(j);
+                                tightest[j] = thresholds.getTightest(alignmentInfo.subst,
+                                        alignmentInfo.ins, alignmentInfo.del);
                             }
 
-                            for (List<AlignmentInfo> alignmentInfos : alignmentVariants.values()) {
-                                float weight = 1.0f / alignmentInfos.size();
-                                int alignmentId = alignmentIdCounter.incrementAndGet(),
-                                        alignmentSubId = 0;
+                            for (int threshold = 0; threshold < thresholds.size(); threshold++) {
+                                int satisfied = 0;
+                                for (int t : tightest) {
+                                    if (t <= threshold) {
+                                        satisfied++;
+                                    }
+                                }
+                                if (satisfied == 0) {
+                                    continue;
+                                }
+
+                                float weight = 1.0f / satisfied;
+                                int alignmentSubId = 0;
+                                String suffix = thresholdsOption != null ?
+                                        "\t" + thresholds.getLabel(threshold) : "";
 
-                                for (AlignmentInfo alignmentInfo : alignmentInfos) {
+                                for (int j = 0; j < tightest.length; j++) {
+                                    if (tightest[j] > threshold) {
+                                        continue;
+                                    }
+
+                                    AlignmentInfo alignmentInfo = alignmentInfos.get(j);
                                     Set<Integer> mutatedPositions = new HashSet<>();
-                                    Alignment alignment = alignmentInfo.alignment;
-                                    AminoAcidSequence reference = (AminoAcidSequence) alignment.getSequence1();
+                                    Alignment<AminoAcidSequence> alignment = alignmentInfo.alignment;
+                                    AminoAcidSequence reference = alignment.getSequence1();
 
                                     String prefix = (alignmentInfo.unknownAntigen ? "TRUE" : "FALSE") + "\t" +
                                             (alignmentInfo.sameAntigen ? "TRUE" : "FALSE") + "\t" +
                                             reference.size() + "\t" + weight + "\t" +
                                             alignmentId + "\t" + (alignmentSubId++) + "\t";
 
-                                    Mutations mutations = alignment.getAbsoluteMutations();
-
-                                    // Count true number of mismatches
-
-                                    int subst = 0, ins = 0, del = 0;
+                                    Mutations<AminoAcidSequence> mutations = alignment.getAbsoluteMutations();
 
-                                    for (int k = 0; k < mutations.size(); k++) {
-                                        switch (mutations.getTypeByIndex(k)) {
-                                            case Substitution:
-                                                subst++;
-                                                break;
-                                            case Insertion:
-                                                ins++;
-                                                break;
-                                            case Deletion:
-                                                del++;
-                                                break;
-                                        }
-                                    }
+                                    prefix += alignmentInfo.subst + "\t" + alignmentInfo.ins + "\t" +
+                                            alignmentInfo.del + "\t";
 
-                                    prefix += subst + "\t" + ins + "\t" + del + "\t";
+                                    long profileKey = profile == null ? 0 :
+                                            profile.getKey(alignmentInfo.unknownAntigen, alignmentInfo.sameAntigen,
+                                                    reference.size(), thisCdr3Info.gene, thisCdr3Info.set,
+                                                    threshold);
 
                                     for (int k = 0; k < mutations.size(); k++) {
                                         MutationType mutationType = mutations.getTypeByIndex(k);
                                         int pos = mutations.getPositionByIndex(k);
                                         boolean isInsertion = mutationType == MutationType.Insertion;
+                                        char from = isInsertion ? '-' : mutations.getFromAsSymbolByIndex(k),
+                                                to = mutationType == MutationType.Deletion ?
+                                                        '-' : mutations.getToAsSymbolByIndex(k);
+                                        String region = thisCdr3Info.getRegion(pos);
 
-                                        lines.add(prefix +
-                                                shortMutationType(mutationType) + "\t" +
-                                                pos + "\t" +
-                                                (isInsertion ?
-                                                        "-" : mutations.getFromAsSymbolByIndex(k)) + "\t" +
-                                                (mutationType == MutationType.Deletion ?
-                                                        "-" : mutations.getToAsSymbolByIndex(k)) + "\t" +
-                                                thisCdr3Info.getRegion(pos) + "\t" +
-                                                thisCdr3Info.gene + "\t" +
-                                                thisCdr3Info.set
-                                        );
+                                        if (writer != null) {
+                                            lines.add(prefix +
+                                                    shortMutationType(mutationType) + "\t" +
+                                                    pos + "\t" +
+                                                    from + "\t" +
+                                                    to + "\t" +
+                                                    region + "\t" +
+                                                    thisCdr3Info.gene + "\t" +
+                                                    thisCdr3Info.set +
+                                                    suffix
+                                            );
+                                        }
+
+                                        if (profile != null) {
+                                            profile.add(profileKey, shortMutationType(mutationType), pos, from, to,
+                                                    region, weight);
+                                        }
 
                                         mutationCounter.incrementAndGet();
 
@@ -177,49 +231,288 @@ public class AlignCdrAux {
                                     for (int i = 0; i < reference.size(); i++) {
                                         char aa = thisCdr3.symbolAt(i);
                                         if (!mutatedPositions.contains(i)) {
-                                            lines.add(prefix +
-                                                    "E\t" +
-                                                    i + "\t" +
-                                                    aa + "\t" +
-                                                    aa + "\t" +
-                                                    thisCdr3Info.getRegion(i) + "\t" +
-                                                    thisCdr3Info.gene + "\t" +
-                                                    thisCdr3Info.set
-                                            );
+                                            if (writer != null) {
+                                                lines.add(prefix +
+                                                        "E\t" +
+                                                        i + "\t" +
+                                                        aa + "\t" +
+                                                        aa + "\t" +
+                                                        thisCdr3Info.getRegion(i) + "\t" +
+                                                        thisCdr3Info.gene + "\t" +
+                                                        thisCdr3Info.set +
+                                                        suffix
+                                                );
+                                            }
+
+                                            if (profile != null) {
+                                                profile.add(profileKey, "E", i, aa, aa,
+                                                        thisCdr3Info.getRegion(i), weight);
+                                            }
                                         }
                                     }
+
+                                    if (writer != null && lines.size() >= LineWriter.BATCH_SIZE) {
+                                        writer.put(lines);
+                                        lines = new ArrayList<>();
+                                    }
                                 }
                             }
+                        }
 
-                            int count = counter.incrementAndGet();
+                        if (writer != null) {
+                            writer.put(lines);
+                        }
 
-                            if (count % 100 == 0) {
-                                System.out.println("[" + (new Date()) + "] " +
-                                        "Queried " + count + " of " + cdr3AntigenMap.size() + " cdr3 sequences. " +
-                                        "Recorded ~" + mutationCounter.get() + " mutations so far.");
-                            }
+                        int count = counter.incrementAndGet();
+
+                        if (count % 100 == 0) {
+                            System.out.println("[" + (new Date()) + "] " +
+                                    "Queried " + count + " of " + annotated.size() + " cdr3 sequences. " +
+                                    "Recorded ~" + mutationCounter.get() + " mutations so far.");
                         }
                     }
-            );
+                );
+            }
 
-            lines.add("END");
+            System.out.println("[" + (new Date()) + "] " +
+                    "Done. Queried " + annotated.size() + " cdr3 sequences. " +
+                    "Recorded " + mutationCounter.get() + " mutations.");
+        }
 
-            writeThread.join();
+        if (profile != null) {
+            int entries;
+            try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(outputFileName), 1 << 20))) {
+                entries = profile.write(pw, thresholdsOption != null ? thresholds : null);
+            }
 
             System.out.println("[" + (new Date()) + "] " +
-                    "Done. Queried " + cdr3AntigenMap.size() + " cdr3 sequences. " +
-                    "Recorded " + mutationCounter.get() + " mutations.");
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+                    "Done. Written " + entries + " mutation profile entries.");
+        }
+    }
+
+    private static void load(String fileName, Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap) throws IOException {
+        try (Stream<String> stream = Files.lines(new File(fileName).toPath())) {
+            stream.forEach(line -> {
+                String[] splitString = line.split("\t");
+                cdr3AntigenMap.compute(new AminoAcidSequence(splitString[0]),
+                        (aminoAcidSequence, cdr3Info) -> {
+                            if (cdr3Info == null) {
+                                cdr3Info = new Cdr3Info(aminoAcidSequence,
+                                        Integer.parseInt(splitString[1]),
+                                        Integer.parseInt(splitString[2]),
+                                        splitString[3],
+                                        splitString[5]);
+                            }
+                            cdr3Info.addAntigen(splitString[4]);
+                            return cdr3Info;
+                        });
+            });
+        }
+    }
+
+    /**
+     * Streams a background repertoire into a sample, cdr3 sequences that are already loaded as VDJdb ones are
+     * skipped. Lines are only parsed to a Cdr3Info if the sample would keep them.
+     */
+    private static void loadBackground(String fileName, Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap,
+                                       BackgroundSample backgroundSample) throws IOException {
+        try (Stream<String> stream = Files.lines(new File(fileName).toPath())) {
+            stream.forEach(line -> {
+                String[] splitString = line.split("\t");
+                long hash = backgroundSample.getHash(splitString[0]);
+                if (backgroundSample.accepts(hash)) {
+                    AminoAcidSequence cdr3 = new AminoAcidSequence(splitString[0]);
+                    if (!cdr3AntigenMap.containsKey(cdr3)) {
+                        backgroundSample.add(hash, new Cdr3Info(cdr3,
+                                Integer.parseInt(splitString[1]),
+                                Integer.parseInt(splitString[2]),
+                                splitString[3],
+                                splitString[5]));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Seeded 64-bit hash of a string, FNV-1a followed by the MurmurHash3 finalizer, used to draw reproducible
+     * random subsets of cdr3 sequences.
+     */
+    private static long hash(String value, long seed) {
+        long hash = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001B3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static Map<Long, SequenceTreeMap<AminoAcidSequence, Cdr3Info>> buildPartitions(List<Cdr3Info> cdr3Infos,
+                                                                                       boolean partitionBySet) {
+        final Map<Long, SequenceTreeMap<AminoAcidSequence, Cdr3Info>> partitions = new ConcurrentHashMap<>();
+
+        cdr3Infos.stream()
+                .collect(Collectors.groupingBy(cdr3Info -> cdr3Info.getPartition(partitionBySet)))
+                .entrySet().parallelStream().forEach(partition -> {
+                    SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm =
+                            new SequenceTreeMap<>(AminoAcidSequence.ALPHABET);
+                    partition.getValue().forEach(cdr3Info -> stm.put(cdr3Info.cdr3, cdr3Info));
+                    partitions.put(partition.getKey(), stm);
+                });
+
+        return partitions;
+    }
+
+    private static Map<Long, int[]> countLengths(List<Cdr3Info> cdr3Infos, boolean partitionBySet) {
+        Map<Long, int[]> lengthCounts = new HashMap<>();
+        for (Cdr3Info cdr3Info : cdr3Infos) {
+            lengthCounts.computeIfAbsent(cdr3Info.getPartition(partitionBySet),
+                    partition -> new int[QueryScheduler.MAX_LENGTH + 1])
+                    [Math.min(cdr3Info.cdr3.size(), QueryScheduler.MAX_LENGTH)]++;
+        }
+        return lengthCounts;
+    }
+
+    /**
+     * Adds all global alignments of a cdr3 to eligible cdr3 sequences of a search tree. If more than maxHits cdr3
+     * sequences are hit, only alignments to a random subset of maxHits of them are added: the ones with the
+     * smallest hash seeded by the query, so that the subset is reproducible and independent of tree order.
+     */
+    private static void collectAlignments(Cdr3Info thisCdr3Info, SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm,
+                                          TreeSearchParameters tsp, int maxHits, long seed,
+                                          Map<AminoAcidSequence, List<AlignmentInfo>> alignmentVariants) {
+        if (stm == null) {
+            return;
+        }
+
+        AminoAcidSequence thisCdr3 = thisCdr3Info.cdr3;
+        Cdr3Info otherCdr3Info;
+        Map<AminoAcidSequence, List<AlignmentInfo>> hits = new HashMap<>();
+
+        NeighborhoodIterator<AminoAcidSequence, Cdr3Info> iter = stm.getNeighborhoodIterator(thisCdr3, tsp);
+
+        while ((otherCdr3Info = iter.next()) != null) {
+            Alignment<AminoAcidSequence> alignment = iter.getCurrentAlignment();
+
+            if (thisCdr3Info.eligibleComparison(otherCdr3Info) &&
+                    alignment.getSequence1Range().length() == thisCdr3.size()) { // enforce global (JIC)
+                final AlignmentInfo alignmentInfo = new AlignmentInfo(
+                        thisCdr3Info.antigensOverlap(otherCdr3Info),
+                        alignment,
+                        thisCdr3Info.unknownAntigen() || otherCdr3Info.unknownAntigen());
+
+                hits.computeIfAbsent(otherCdr3Info.cdr3, cdr3 -> new ArrayList<>()).add(alignmentInfo);
+            }
+        }
+
+        if (hits.size() > maxHits) {
+            long querySeed = hash(thisCdr3.toString(), seed);
+            Map<AminoAcidSequence, Long> priorities = new HashMap<>();
+            for (AminoAcidSequence cdr3 : hits.keySet()) {
+                priorities.put(cdr3, hash(cdr3.toString(), querySeed));
+            }
+            List<AminoAcidSequence> sorted = new ArrayList<>(hits.keySet());
+            sorted.sort(Comparator.comparing(priorities::get));
+            for (AminoAcidSequence cdr3 : sorted.subList(maxHits, sorted.size())) {
+                hits.remove(cdr3);
+            }
+        }
+
+        alignmentVariants.putAll(hits);
+    }
+
+    private static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Bad option '" + args[i] + "', should be --name=value.");
+            }
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                options.put(args[i].substring(2), "true");
+            } else {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Random subset of at most a given number of distinct background cdr3 sequences, selected while loading: the
+     * ones with the smallest seeded hash are kept, so the subset is reproducible for the same seed and set of cdr3
+     * sequences regardless of their order, and only kept cdr3 sequences are held in memory. Cdr3 sequences are
+     * told apart by their 64-bit hash.
+     */
+    private static class BackgroundSample {
+        private final TreeMap<Long, Cdr3Info> kept = new TreeMap<>();
+        private final int size;
+        private final long seed;
+
+        BackgroundSample(int size, long seed) {
+            this.size = size;
+            this.seed = seed;
+        }
+
+        long getHash(String cdr3) {
+            return hash(cdr3, seed);
+        }
+
+        /**
+         * Returns true if a cdr3 with a given hash is not kept yet and would be kept.
+         */
+        boolean accepts(long hash) {
+            return !kept.containsKey(hash) && (kept.size() < size || (size > 0 && hash < kept.lastKey()));
+        }
+
+        void add(Cdr3Info cdr3Info) {
+            long hash = getHash(cdr3Info.cdr3.toString());
+            if (accepts(hash)) {
+                add(hash, cdr3Info);
+            }
+        }
+
+        void add(long hash, Cdr3Info cdr3Info) {
+            kept.put(hash, cdr3Info);
+            if (kept.size() > size) {
+                kept.pollLastEntry();
+            }
+        }
+
+        List<Cdr3Info> getCdr3Infos() {
+            return new ArrayList<>(kept.values());
+        }
+    }
+
+    /**
+     * Dense ids of strings in order of first occurrence, filled while loading and only read afterwards.
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int getId(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
         }
     }
 
     private static class Cdr3Info {
         final static String NA_ANTIGEN_CHAR = ".";
+        final static Dictionary ANTIGENS = new Dictionary(), GENES = new Dictionary(), SETS = new Dictionary();
 
         final AminoAcidSequence cdr3;
-        final Set<String> antigens = new HashSet<>();
-        final int vEnd, jStart;
+        // sorted ids of known antigens and a mask with bit (id mod 64) set for each of them, the mask alone is
+        // exact as long as all ids are below 64
+        int[] antigenIds = new int[0];
+        long antigenMask;
+        boolean unknownAntigen = true;
+        final int vEnd, jStart, geneId, setId;
         final String gene, set;
 
         Cdr3Info(AminoAcidSequence cdr3, int vEnd, int jStart, String gene,
@@ -228,36 +521,71 @@ public class AlignCdrAux {
             this.vEnd = vEnd;
             this.jStart = jStart;
             this.gene = gene;
+            this.geneId = GENES.getId(gene);
             this.set = set;
+            this.setId = SETS.getId(set);
+        }
+
+        /**
+         * Search tree partition, other cdr3 sequences are only compared within the same gene.
+         */
+        long getPartition(boolean bySet) {
+            return bySet ? ((long) geneId << 32) | setId : geneId;
         }
 
         void addAntigen(String antigen) {
-            antigens.add(antigen);
+            if (!antigen.equals(NA_ANTIGEN_CHAR)) {
+                int antigenId = ANTIGENS.getId(antigen);
+                antigenIds = insert(antigenIds, antigenId);
+                antigenMask |= 1L << antigenId;
+                unknownAntigen = false;
+            }
         }
 
         boolean antigensOverlap(Cdr3Info other) {
-            return overlaps(this.antigens, other.antigens);
+            if ((antigenMask & other.antigenMask) == 0) {
+                return false;
+            }
+            if (antigenIds[antigenIds.length - 1] < 64 && other.antigenIds[other.antigenIds.length - 1] < 64) {
+                return true;
+            }
+            return overlaps(antigenIds, other.antigenIds);
         }
 
         boolean unknownAntigen() {
-            return antigens.size() == 1 && antigens.contains(NA_ANTIGEN_CHAR);
+            return unknownAntigen;
         }
 
         boolean eligibleComparison(Cdr3Info otherCdr3Info) {
-            return gene.equals(otherCdr3Info.gene) &&
-                    // unknown antigens are not searched, so just remove exact match
-                    ((otherCdr3Info.unknownAntigen() && cdr3.compareTo(otherCdr3Info.cdr3) != 0) ||
-                            // remove exact matches and duplicate comparisons
-                            cdr3.compareTo(otherCdr3Info.cdr3) > 0);
+            // genes always match within a partition
+            // unknown antigens are not searched, so just remove exact match
+            return (otherCdr3Info.unknownAntigen && cdr3.compareTo(otherCdr3Info.cdr3) != 0) ||
+                    // remove exact matches and duplicate comparisons
+                    cdr3.compareTo(otherCdr3Info.cdr3) > 0;
         }
 
-        private static boolean overlaps(Set<String> set1, Set<String> set2) {
-            if (set1.size() > set2.size()) {
-                return overlaps(set2, set1);
+        private static int[] insert(int[] ids, int id) {
+            int index = Arrays.binarySearch(ids, id);
+            if (index >= 0) {
+                return ids;
             }
-            for (String value : set1) {
-                if (!value.equals(NA_ANTIGEN_CHAR) && set2.contains(value))
+            index = -index - 1;
+            int[] newIds = new int[ids.length + 1];
+            System.arraycopy(ids, 0, newIds, 0, index);
+            newIds[index] = id;
+            System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+            return newIds;
+        }
+
+        private static boolean overlaps(int[] ids1, int[] ids2) {
+            for (int i = 0, j = 0; i < ids1.length && j < ids2.length; ) {
+                if (ids1[i] == ids2[j]) {
                     return true;
+                } else if (ids1[i] < ids2[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
             }
             return false;
         }
@@ -270,12 +598,226 @@ public class AlignCdrAux {
     private static class AlignmentInfo {
         final boolean sameAntigen, unknownAntigen;
         final Alignment<AminoAcidSequence> alignment;
+        final int subst, ins, del;
 
         AlignmentInfo(boolean sameAntigen, Alignment<AminoAcidSequence> alignment,
                       boolean unknownAntigen) {
             this.sameAntigen = sameAntigen;
             this.alignment = alignment;
             this.unknownAntigen = unknownAntigen;
+
+            // Count true number of mismatches
+
+            Mutations<AminoAcidSequence> mutations = alignment.getAbsoluteMutations();
+            int subst = 0, ins = 0, del = 0;
+
+            for (int k = 0; k < mutations.size(); k++) {
+                switch (mutations.getTypeByIndex(k)) {
+                    case Substitution:
+                        subst++;
+                        break;
+                    case Insertion:
+                        ins++;
+                        break;
+                    case Deletion:
+                        del++;
+                        break;
+                }
+            }
+
+            this.subst = subst;
+            this.ins = ins;
+            this.del = del;
+        }
+    }
+
+    /**
+     * Mutation and exact match counts, and sums of alignment weights, aggregated by (unknown.ag, same.ag,
+     * cdr3.len, mut.type, mut.pos, mut.from, mut.to, mut.region, gene, set, threshold).
+     * <p>
+     * Each combination is packed into a single long key and accumulated in primitive open-addressing tables,
+     * one per thread, which are merged when writing. Key layout from high to low bits: unknown.ag (1),
+     * same.ag (1), cdr3.len (7), mut.type (2), mut.pos (7), mut.from (5), mut.to (5), mut.region (2),
+     * gene id (8), set id (8), threshold (4), so that sorted keys follow output column order.
+     */
+    private static class MutationProfile {
+        static final String TYPES = "SIDE", REGIONS = "VNJ";
+        static final char GAP = '-';
+        static final int MAX_LEN = 127, MAX_IDS = 256, MAX_THRESHOLDS = 16;
+
+        private final List<String> genes, sets;
+        private final Map<String, Integer> geneIds = new HashMap<>(), setIds = new HashMap<>();
+        private final List<Counter> counters = Collections.synchronizedList(new ArrayList<>());
+        private final ThreadLocal<Counter> threadCounter = ThreadLocal.withInitial(() -> {
+            Counter counter = new Counter();
+            counters.add(counter);
+            return counter;
+        });
+
+        MutationProfile(Collection<Cdr3Info> cdr3Infos) {
+            this.genes = intern(cdr3Infos.stream().map(cdr3Info -> cdr3Info.gene), geneIds);
+            this.sets = intern(cdr3Infos.stream().map(cdr3Info -> cdr3Info.set), setIds);
+        }
+
+        private static List<String> intern(Stream<String> values, Map<String, Integer> ids) {
+            List<String> sorted = new ArrayList<>(new TreeSet<>(values.collect(Collectors.toList())));
+            if (sorted.size() > MAX_IDS) {
+                throw new IllegalArgumentException("More than " + MAX_IDS + " distinct genes or sets.");
+            }
+            for (int i = 0; i < sorted.size(); i++) {
+                ids.put(sorted.get(i), i);
+            }
+            return sorted;
+        }
+
+        /**
+         * Packs the per-alignment part of the key.
+         */
+        long getKey(boolean unknownAntigen, boolean sameAntigen, int cdr3Length, String gene, String set,
+                    int threshold) {
+            if (cdr3Length > MAX_LEN) {
+                throw new IllegalArgumentException("CDR3 is longer than " + MAX_LEN + ".");
+            }
+            if (threshold >= MAX_THRESHOLDS) {
+                throw new IllegalArgumentException("More than " + MAX_THRESHOLDS + " thresholds.");
+            }
+            return ((unknownAntigen ? 1L : 0L) << 49) | ((sameAntigen ? 1L : 0L) << 48) |
+                    ((long) cdr3Length << 41) |
+                    ((long) geneIds.get(gene) << 12) | ((long) setIds.get(set) << 4) | threshold;
+        }
+
+        void add(long key, String type, int pos, char from, char to, String region, float weight) {
+            threadCounter.get().add(key |
+                    ((long) TYPES.indexOf(type.charAt(0)) << 39) | ((long) pos << 32) |
+                    ((long) getCode(from) << 27) | ((long) getCode(to) << 22) |
+                    ((long) REGIONS.indexOf(region.charAt(0)) << 20), weight);
+        }
+
+        /**
+         * 5-bit code of a residue: 0 for a gap, otherwise amino acid alphabet code, including wildcards, plus one.
+         */
+        private static int getCode(char aa) {
+            if (aa == GAP) {
+                return 0;
+            }
+            byte code = AminoAcidSequence.ALPHABET.symbolToCode(aa);
+            if (code < 0) {
+                throw new IllegalArgumentException("Unknown amino acid '" + aa + "'.");
+            }
+            return code + 1;
+        }
+
+        private static char getSymbol(int code) {
+            return code == 0 ? GAP : AminoAcidSequence.ALPHABET.codeToSymbol((byte) (code - 1));
+        }
+
+        private Counter merge() {
+            Counter merged = new Counter();
+            for (Counter counter : counters) {
+                for (int i = 0; i < counter.keys.length; i++) {
+                    if (counter.keys[i] != Counter.EMPTY) {
+                        merged.add(counter.keys[i], counter.counts[i], counter.weights[i]);
+                    }
+                }
+            }
+            return merged;
+        }
+
+        /**
+         * Writes merged counts sorted by key and returns the number of entries written.
+         */
+        int write(PrintWriter pw, Thresholds thresholds) {
+            pw.println("unknown.ag\tsame.ag\tcdr3.len\t" +
+                    "mut.type\tmut.pos\tmut.from\tmut.to\t" +
+                    "mut.region\tgene\tset\t" +
+                    (thresholds != null ? "threshold\t" : "") +
+                    "count\tweight");
+
+            Counter merged = merge();
+            long[] sortedKeys = new long[merged.size];
+            for (int i = 0, n = 0; i < merged.keys.length; i++) {
+                if (merged.keys[i] != Counter.EMPTY) {
+                    sortedKeys[n++] = merged.keys[i];
+                }
+            }
+            Arrays.sort(sortedKeys);
+
+            for (long key : sortedKeys) {
+                int slot = Counter.find(merged.keys, key);
+                pw.println((((key >>> 49) & 1) == 1 ? "TRUE" : "FALSE") + "\t" +
+                        (((key >>> 48) & 1) == 1 ? "TRUE" : "FALSE") + "\t" +
+                        ((key >>> 41) & MAX_LEN) + "\t" +
+                        TYPES.charAt((int) (key >>> 39) & 3) + "\t" +
+                        ((key >>> 32) & MAX_LEN) + "\t" +
+                        getSymbol((int) (key >>> 27) & 31) + "\t" +
+                        getSymbol((int) (key >>> 22) & 31) + "\t" +
+                        REGIONS.charAt((int) (key >>> 20) & 3) + "\t" +
+                        genes.get((int) (key >>> 12) & (MAX_IDS - 1)) + "\t" +
+                        sets.get((int) (key >>> 4) & (MAX_IDS - 1)) + "\t" +
+                        (thresholds != null ? thresholds.getLabel((int) key & (MAX_THRESHOLDS - 1)) + "\t" : "") +
+                        merged.counts[slot] + "\t" + (float) merged.weights[slot]);
+            }
+
+            return merged.size;
+        }
+
+        private static class Counter {
+            static final long EMPTY = -1L;
+
+            long[] keys = new long[1024];
+            long[] counts = new long[1024];
+            double[] weights = new double[1024];
+            int size;
+
+            Counter() {
+                Arrays.fill(keys, EMPTY);
+            }
+
+            void add(long key, float weight) {
+                add(key, 1, weight);
+            }
+
+            void add(long key, long count, double weight) {
+                int slot = find(keys, key);
+                if (keys[slot] == EMPTY) {
+                    if (2 * (size + 1) > keys.length) {
+                        rehash();
+                        slot = find(keys, key);
+                    }
+                    keys[slot] = key;
+                    size++;
+                }
+                counts[slot] += count;
+                weights[slot] += weight;
+            }
+
+            static int find(long[] keys, long key) {
+                int mask = keys.length - 1,
+                        slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+                while (keys[slot] != EMPTY && keys[slot] != key) {
+                    slot = (slot + 1) & mask;
+                }
+                return slot;
+            }
+
+            private void rehash() {
+                long[] oldKeys = keys, oldCounts = counts;
+                double[] oldWeights = weights;
+
+                keys = new long[oldKeys.length * 2];
+                counts = new long[keys.length];
+                weights = new double[keys.length];
+                Arrays.fill(keys, EMPTY);
+
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != EMPTY) {
+                        int slot = find(keys, oldKeys[i]);
+                        keys[slot] = oldKeys[i];
+                        counts[slot] = oldCounts[i];
+                        weights[slot] = oldWeights[i];
+                    }
+                }
+            }
         }
     }
 
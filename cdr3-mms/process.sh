@@ -1,6 +1,30 @@
 Rscript filter_vdjdb.R "HomoSapiens" "TRB" 0 10 PMID:28636589,PMID:28636592
 #mvn clean install
-#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutations.txt
-#cat mutations.txt | wc -l
-#rm mutations.txt.gz
-#gzip mutations.txt
+# LineWriter, QueryScheduler and Thresholds are shared with cdr3-net and kept in ../cdr3-common:
+#javac -sourcepath .:../cdr3-common AlignCdrAux.java
+#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutations.txt.gz
+#zcat mutations.txt.gz | wc -l
+
+# nested thresholds in a single search, each alignment is written once for every threshold it satisfies with
+# weight and align.sub.id over the alignments of the same align.id satisfying it, so lines and profile entries
+# with threshold == "1:0" are those of a separate 1 0 run
+#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutations.txt.gz --thresholds=1:0,2:1
+
+# aggregated mutation profile: counts and weight sums by unknown.ag, same.ag, cdr3.len, mut.type, mut.pos,
+# mut.from, mut.to, mut.region, gene and set; line per position output is then only written with --raw
+#java -Xmx2G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutation_profile.txt --profile
+#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutation_profile.txt --profile --raw=mutations.txt.gz
+
+# cdr3 sequences are always searched within their own gene, --partition-by-set also restricts comparisons
+# to the same set
+#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutations.txt.gz --partition-by-set
+
+# background repertoires in the same format as vdjdb.txt (antigen column is ignored) are indexed separately
+# together with vdjdb cdr3 sequences of unknown antigen and reported as unknown.ag; --background-size
+# downsamples them reproducibly while loading (--background-seed, 51103 by default), --background-max-hits caps
+# background cdr3 sequences aligned to each query by a random subset of them
+#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutation_profile.txt --profile \
+#    --background=background1.txt,background2.txt --background-size=1000000 --background-max-hits=100
+
+# queries are run from the most expensive ones on --threads worker threads, all available cores by default
+#java -Xmx10G -jar target/cdr3align-0.0.1.jar 3 0 vdjdb.txt mutations.txt.gz --threads=16
@@ -1,11 +1,14 @@
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import com.milaboratory.core.alignment.Alignment;
 import com.milaboratory.core.mutations.MutationType;
@@ -22,8 +25,531 @@ public class BuildHammingNet {
 
         String inputFileName = args[2], outputFileName = args[3];
 
+        Map<String, String> options = parseOptions(args, 4);
+
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        String previousNodesFileName = options.get("previous-nodes"),
+                previousEdgesFileName = options.get("previous-edges");
+
+        if ((previousNodesFileName == null) != (previousEdgesFileName == null)) {
+            throw new IllegalArgumentException("Both --previous-nodes and --previous-edges should be specified.");
+        }
+
+        boolean binary = Boolean.parseBoolean(options.getOrDefault("binary", "false"));
+
+        if (binary && previousNodesFileName != null) {
+            throw new IllegalArgumentException("Incremental update is only supported for text output.");
+        }
+
+        boolean clusters = Boolean.parseBoolean(options.getOrDefault("clusters", "false")),
+                writeEdges = !Boolean.parseBoolean(options.getOrDefault("no-edges", "false"));
+
+        if (clusters && previousNodesFileName != null) {
+            throw new IllegalArgumentException("Clustering is not supported for incremental update.");
+        }
+        if (!writeEdges && !clusters) {
+            throw new IllegalArgumentException("Edges can only be omitted when computing clusters.");
+        }
+
+        if (options.containsKey("annotate") && (binary || clusters || previousNodesFileName != null)) {
+            throw new IllegalArgumentException("Annotation is not supported for binary, cluster or incremental " +
+                    "output.");
+        }
+
+        // Nested thresholds are reported in a single search with the loosest one, the positional parameters
+
+        String thresholdsOption = options.get("thresholds");
+        final Thresholds thresholds = new Thresholds(thresholdsOption, maxSubstitutions, maxIndels);
+
+        if (thresholdsOption != null && (binary || clusters || previousNodesFileName != null ||
+                options.containsKey("annotate"))) {
+            throw new IllegalArgumentException("Thresholds are only supported for plain text edge output.");
+        }
+
+        final Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap = loadNodes(inputFileName);
+
+        System.out.println("Loaded " + cdr3AntigenMap.size() + " cdr3 sequences.");
+
+        String annotateSamples = options.get("annotate");
+        if (annotateSamples != null) {
+            annotate(annotateSamples.split(","), cdr3AntigenMap,
+                    new TreeSearchParameters(maxSubstitutions, maxIndels, maxIndels), outputFileName,
+                    Integer.parseInt(options.getOrDefault("annotate-cache", "1000000")), threads);
+            return;
+        }
+
+        // In incremental mode previous edges are kept and only added cdr3 sequences are queried, they are placed
+        // after the kept ones so that substitution-only search visits each new pair once
+
+        final Map<AminoAcidSequence, Cdr3Info> previousCdr3AntigenMap = previousNodesFileName == null ?
+                null : loadNodes(previousNodesFileName);
+        final Set<AminoAcidSequence> added = new HashSet<>();
+
+        List<Cdr3Info> orderedCdr3Infos = new ArrayList<>();
+        for (Cdr3Info cdr3Info : cdr3AntigenMap.values()) {
+            if (previousCdr3AntigenMap != null && !previousCdr3AntigenMap.containsKey(cdr3Info.cdr3)) {
+                added.add(cdr3Info.cdr3);
+            } else {
+                orderedCdr3Infos.add(cdr3Info);
+            }
+        }
+        final int keptCount = orderedCdr3Infos.size();
+        for (AminoAcidSequence cdr3 : added) {
+            orderedCdr3Infos.add(cdr3AntigenMap.get(cdr3));
+        }
+
+        final Cdr3Info[] cdr3Infos = orderedCdr3Infos.toArray(new Cdr3Info[0]);
+        for (int id = 0; id < cdr3Infos.length; id++) {
+            cdr3Infos[id].id = id;
+        }
+
+        // Substitution-only search uses a dedicated engine, tree is only needed with indels
+
+        final SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm = new SequenceTreeMap<>(AminoAcidSequence.ALPHABET);
+        final HammingSearch hammingSearch;
+
+        if (maxIndels == 0) {
+            AminoAcidSequence[] cdr3s = new AminoAcidSequence[cdr3Infos.length];
+            for (int i = 0; i < cdr3Infos.length; i++) {
+                cdr3s[i] = cdr3Infos[i].cdr3;
+            }
+            hammingSearch = new HammingSearch(cdr3s, maxSubstitutions);
+        } else {
+            hammingSearch = null;
+            cdr3AntigenMap.entrySet().forEach(kvp -> stm.put(kvp.getKey(), kvp.getValue()));
+        }
+
+        final TreeSearchParameters tsp = new TreeSearchParameters(maxSubstitutions, maxIndels, maxIndels);
+
+        int[] queryIds = IntStream.range(previousCdr3AntigenMap == null ? 0 : keptCount, cdr3Infos.length)
+                .toArray();
+
+        // Tree search is not symmetric for indels and reports an edge when querying its larger cdr3, so in
+        // incremental mode kept cdr3 sequences are also queried, against a small tree of added ones
+
+        final SequenceTreeMap<AminoAcidSequence, Cdr3Info> addedStm =
+                new SequenceTreeMap<>(AminoAcidSequence.ALPHABET);
+
+        if (previousCdr3AntigenMap != null && hammingSearch == null) {
+            added.forEach(cdr3 -> addedStm.put(cdr3, cdr3AntigenMap.get(cdr3)));
+            queryIds = IntStream.range(0, cdr3Infos.length).toArray();
+        }
+
+        String header = "cdr3.1\tcdr3.2\tsame.ag\tsubst\tins\tdel\tedge.id\tweight" +
+                (thresholdsOption != null ? "\tthreshold" : "");
+
+        // Binary output: node dictionary and CSR edges, output file name is used as a prefix
+
+        final CsrGraph.Builder csrBuilder = binary && writeEdges ? new CsrGraph.Builder(cdr3Infos.length) : null;
+
+        // Clusters are connected components, computed by union-find while edges are discovered
+
+        final ConcurrentUnionFind unionFind = clusters ? new ConcurrentUnionFind(cdr3Infos.length) : null;
+        final AtomicIntegerArray edgeCounts = clusters ? new AtomicIntegerArray(cdr3Infos.length) : null;
+
+        try (final LineWriter writer = binary || !writeEdges ? null :
+                new LineWriter(new File(outputFileName), header)) {
+            if (previousCdr3AntigenMap != null) {
+                updatePreviousEdges(previousEdgesFileName, cdr3AntigenMap, previousCdr3AntigenMap, added.size(),
+                        writer);
+            }
+
+            final AtomicInteger counter = new AtomicInteger();
+            final int queryCount = queryIds.length;
+
+            // Queries are run from the most expensive ones, estimated from cdr3 length and the number of cdr3
+            // sequences it can be compared to: same length ones with a lower id for substitution-only search,
+            // ones with length within indel budget in the queried tree otherwise
+
+            double[] costs = new double[queryIds.length];
+            if (hammingSearch != null) {
+                int[] lowerIdCounts = new int[QueryScheduler.MAX_LENGTH + 1];
+                for (int i = 0, id = 0; i < queryIds.length; i++) {
+                    for (; id < queryIds[i]; id++) {
+                        lowerIdCounts[Math.min(cdr3Infos[id].cdr3.size(), QueryScheduler.MAX_LENGTH)]++;
+                    }
+                    int length = cdr3Infos[queryIds[i]].cdr3.size();
+                    costs[i] = QueryScheduler.getCost(length,
+                            lowerIdCounts[Math.min(length, QueryScheduler.MAX_LENGTH)], maxSubstitutions, 0);
+                }
+            } else {
+                int[] lengthCounts = new int[QueryScheduler.MAX_LENGTH + 1],
+                        addedLengthCounts = new int[QueryScheduler.MAX_LENGTH + 1];
+                for (Cdr3Info cdr3Info : cdr3Infos) {
+                    int length = Math.min(cdr3Info.cdr3.size(), QueryScheduler.MAX_LENGTH);
+                    lengthCounts[length]++;
+                    if (cdr3Info.id >= keptCount) {
+                        addedLengthCounts[length]++;
+                    }
+                }
+                for (int i = 0; i < queryIds.length; i++) {
+                    Cdr3Info cdr3Info = cdr3Infos[queryIds[i]];
+                    boolean againstAdded = cdr3Info.id < keptCount && previousCdr3AntigenMap != null;
+                    costs[i] = QueryScheduler.getCost(cdr3Info.cdr3.size(),
+                            QueryScheduler.countWithin(againstAdded ? addedLengthCounts : lengthCounts,
+                                    cdr3Info.cdr3.size(), maxIndels),
+                            maxSubstitutions, maxIndels);
+                }
+            }
+
+            try (QueryScheduler scheduler = new QueryScheduler(threads)) {
+                scheduler.run(queryIds, costs, id -> {
+                        List<String> lines = new ArrayList<>();
+
+                        EdgeVisitor edgeVisitor = !writeEdges ? null : csrBuilder != null ?
+                                (thisCdr3Info, otherCdr3Info, sameAntigen, subst, ins, del, threshold) ->
+                                        csrBuilder.add(thisCdr3Info.id, otherCdr3Info.id,
+                                                CsrGraph.pack(sameAntigen, subst, ins, del,
+                                                        getWeight(thisCdr3Info.cdr3, otherCdr3Info.cdr3,
+                                                                subst, ins, del))) :
+                                (thisCdr3Info, otherCdr3Info, sameAntigen, subst, ins, del, threshold) ->
+                                        lines.add(formatEdge(thisCdr3Info.cdr3, otherCdr3Info.cdr3, sameAntigen,
+                                                subst, ins, del,
+                                                thresholdsOption != null ? thresholds.getLabel(threshold) : null));
+
+                        EdgeVisitor visitor = unionFind == null ? edgeVisitor :
+                                (thisCdr3Info, otherCdr3Info, sameAntigen, subst, ins, del, threshold) -> {
+                                    unionFind.union(thisCdr3Info.id, otherCdr3Info.id);
+                                    edgeCounts.incrementAndGet(thisCdr3Info.id);
+                                    if (edgeVisitor != null) {
+                                        edgeVisitor.visit(thisCdr3Info, otherCdr3Info, sameAntigen, subst, ins, del,
+                                                threshold);
+                                    }
+                                };
+
+                        if (hammingSearch != null) {
+                            hammingSearch.forEachNeighbor(id, id, (id1, id2, subst) -> {
+                                Cdr3Info cdr3Info1 = cdr3Infos[id1], cdr3Info2 = cdr3Infos[id2];
+                                if (!cdr3Info1.nonDuplicateComparison(cdr3Info2)) {
+                                    Cdr3Info tmp = cdr3Info1;
+                                    cdr3Info1 = cdr3Info2;
+                                    cdr3Info2 = tmp;
+                                }
+                                boolean sameAntigen = cdr3Info1.antigensOverlap(cdr3Info2);
+                                for (int threshold = thresholds.getTightest(subst, 0, 0);
+                                     threshold < thresholds.size(); threshold++) {
+                                    visitor.visit(cdr3Info1, cdr3Info2, sameAntigen, subst, 0, 0, threshold);
+                                }
+                            });
+                        } else {
+                            queryTree(cdr3Infos[id], id < keptCount && previousCdr3AntigenMap != null ? addedStm : stm,
+                                    tsp, thresholds, visitor);
+                        }
+
+                        if (writer != null) {
+                            writer.put(lines);
+                        }
+
+                        int count = counter.incrementAndGet();
+
+                        if (count % 100 == 0) {
+                            System.out.println("[" + (new Date()) + "] " +
+                                    "Queried " + count + " of " + queryCount + " cdr3 sequences.");
+                        }
+                    }
+                );
+            }
+
+            if (csrBuilder != null) {
+                try (PrintWriter pw = new PrintWriter(new File(outputFileName + ".nodes.txt"))) {
+                    pw.println("cdr3");
+                    for (Cdr3Info cdr3Info : cdr3Infos) {
+                        pw.println(cdr3Info.cdr3);
+                    }
+                }
+                csrBuilder.write(new File(outputFileName + ".csr"));
+
+                System.out.println("[" + (new Date()) + "] " +
+                        "Wrote " + csrBuilder.size() + " edges to " + outputFileName + ".csr");
+            }
+
+            if (unionFind != null) {
+                writeClusters(outputFileName, cdr3Infos, unionFind, edgeCounts);
+            }
+
+            System.out.println("[" + (new Date()) + "] " +
+                    "Done. Queried " + queryCount + " cdr3 sequences.");
+        }
+    }
+
+    /**
+     * Writes cluster assignments of cdr3 sequences and per-cluster summary: number of edges, distinct antigens,
+     * the most frequent antigen and purity, i.e. the fraction of cluster cdr3 sequences recognizing it. Cluster
+     * ids are assigned by decreasing size.
+     */
+    private static void writeClusters(String outputFileName, Cdr3Info[] cdr3Infos, ConcurrentUnionFind unionFind,
+                                      AtomicIntegerArray edgeCounts) throws IOException {
+        int[] roots = new int[cdr3Infos.length], sizes = new int[cdr3Infos.length];
+        for (int id = 0; id < cdr3Infos.length; id++) {
+            roots[id] = unionFind.find(id);
+            sizes[roots[id]]++;
+        }
+
+        // order nodes by cluster size, then by root to keep clusters contiguous
+
+        Integer[] order = new Integer[cdr3Infos.length];
+        for (int id = 0; id < cdr3Infos.length; id++) {
+            order[id] = id;
+        }
+        Arrays.sort(order, (id1, id2) -> sizes[roots[id1]] != sizes[roots[id2]] ?
+                Integer.compare(sizes[roots[id2]], sizes[roots[id1]]) :
+                Integer.compare(roots[id1], roots[id2]));
+
+        int clusterCount = 0, largest = 0;
+
+        try (PrintWriter pw = new PrintWriter(new File(outputFileName + ".clusters.txt"));
+             PrintWriter summary = new PrintWriter(new File(outputFileName + ".clusters.summary.txt"))) {
+            pw.println("cdr3\tcluster.id\tcluster.size");
+            summary.println("cluster.id\tcluster.size\tedges\tantigens\ttop.antigen\tpurity");
+
+            for (int from = 0, to; from < order.length; from = to) {
+                int root = roots[order[from]];
+                to = from + 1;
+                while (to < order.length && roots[order[to]] == root) {
+                    to++;
+                }
+
+                int clusterId = clusterCount++, size = to - from;
+                long edges = 0;
+                Map<String, Integer> antigenCounts = new HashMap<>();
+
+                for (int i = from; i < to; i++) {
+                    Cdr3Info cdr3Info = cdr3Infos[order[i]];
+                    pw.println(cdr3Info.cdr3 + "\t" + clusterId + "\t" + size);
+                    edges += edgeCounts.get(cdr3Info.id);
+                    for (String antigen : cdr3Info.getAntigens()) {
+                        antigenCounts.merge(antigen, 1, Integer::sum);
+                    }
+                }
+
+                String topAntigen = null;
+                int topCount = 0;
+                for (Map.Entry<String, Integer> entry : antigenCounts.entrySet()) {
+                    if (entry.getValue() > topCount ||
+                            (entry.getValue() == topCount && entry.getKey().compareTo(topAntigen) < 0)) {
+                        topAntigen = entry.getKey();
+                        topCount = entry.getValue();
+                    }
+                }
+
+                summary.println(clusterId + "\t" + size + "\t" + edges + "\t" + antigenCounts.size() + "\t" +
+                        topAntigen + "\t" + (float) topCount / size);
+
+                largest = Math.max(largest, size);
+            }
+        }
+
+        System.out.println("[" + (new Date()) + "] " +
+                "Found " + clusterCount + " clusters, the largest one has " + largest + " cdr3 sequences.");
+    }
+
+    private static final int SAMPLE_COUNT_COL = 0,
+            SAMPLE_FREQ_COL = 1,
+            SAMPLE_CDR3AA_COL = 3,
+            SAMPLE_V_COL = 4,
+            SAMPLE_J_COL = 6,
+            SAMPLE_BATCH_SIZE = 65536;
+
+    /**
+     * Annotates clonotypes of VDJtools samples with matching reference cdr3 sequences. Samples are streamed in
+     * batches that are searched by a single query scheduler with a given number of threads while the next batch
+     * is read, so memory does not depend on sample size. Samples are gunzipped if the file name ends with .gz.
+     * Search results of up to cacheSize recently queried cdr3 sequences, matched or not, are cached and reused
+     * across samples.
+     */
+    private static void annotate(String[] sampleFileNames, Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap,
+                                 TreeSearchParameters tsp, String outputFileName,
+                                 int cacheSize, int threads) throws IOException {
+        final SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm = new SequenceTreeMap<>(AminoAcidSequence.ALPHABET);
+
+        cdr3AntigenMap.entrySet().forEach(kvp -> stm.put(kvp.getKey(), kvp.getValue()));
+
+        final QueryCache cache = new QueryCache(cacheSize);
+        final AtomicLong cacheHits = new AtomicLong(), matched = new AtomicLong();
+
+        String header = "sample\tcount\tfreq\tcdr3aa\tv\tj\t" +
+                "cdr3.ref\tsubst\tins\tdel\tantigens";
+
+        try (final LineWriter writer = new LineWriter(new File(outputFileName), header);
+             final QueryScheduler scheduler = new QueryScheduler(threads)) {
+            for (String sampleFileName : sampleFileNames) {
+                String sampleName = new File(sampleFileName).getName().replaceAll("\\.txt(\\.gz)?$", "");
+                long queried = 0;
+                ForkJoinTask<?> searched = null;
+
+                InputStream is = new FileInputStream(sampleFileName);
+                if (sampleFileName.endsWith(".gz")) {
+                    is = new GZIPInputStream(is, 1 << 16);
+                }
+
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII),
+                        1 << 20)) {
+                    List<String> batch = new ArrayList<>();
+                    String line;
+
+                    br.readLine(); // skip header
+
+                    do {
+                        line = br.readLine();
+                        if (line != null) {
+                            batch.add(line);
+                        }
+                        if (batch.size() == SAMPLE_BATCH_SIZE || (line == null && !batch.isEmpty())) {
+                            // Next batch is split while the previous one is searched, within a batch longer cdr3
+                            // sequences have more ways to place mutations, so they are searched first
+
+                            final String[][] splitLines = new String[batch.size()][];
+                            double[] costs = new double[batch.size()];
+                            for (int i = 0; i < splitLines.length; i++) {
+                                splitLines[i] = batch.get(i).split("\t");
+                                costs[i] = QueryScheduler.getCost(splitLines[i][SAMPLE_CDR3AA_COL].length(), 1,
+                                        tsp.getMaxSubstitutions(), tsp.getMaxInsertions());
+                            }
+
+                            if (searched != null) {
+                                searched.join();
+                            }
+                            searched = scheduler.start(IntStream.range(0, splitLines.length).toArray(), costs, i -> {
+                                String[] splitLine = splitLines[i];
+                                String cdr3aa = splitLine[SAMPLE_CDR3AA_COL];
+
+                                String[] matches = cache.get(cdr3aa);
+                                if (matches != null) {
+                                    cacheHits.incrementAndGet();
+                                } else {
+                                    matches = queryReference(cdr3aa, stm, tsp);
+                                    cache.put(cdr3aa, matches);
+                                }
+
+                                if (matches.length > 0) {
+                                    String prefix = sampleName + "\t" +
+                                            splitLine[SAMPLE_COUNT_COL] + "\t" + splitLine[SAMPLE_FREQ_COL] + "\t" +
+                                            cdr3aa + "\t" + splitLine[SAMPLE_V_COL] + "\t" +
+                                            splitLine[SAMPLE_J_COL] + "\t";
+                                    List<String> lines = new ArrayList<>(matches.length);
+                                    for (String match : matches) {
+                                        lines.add(prefix + match);
+                                    }
+                                    writer.put(lines);
+                                    matched.incrementAndGet();
+                                }
+                            });
+                            queried += batch.size();
+                            batch = new ArrayList<>();
+                        }
+                    } while (line != null);
+                }
+
+                if (searched != null) {
+                    searched.join();
+                }
+
+                System.out.println("[" + (new Date()) + "] " +
+                        "Annotated " + sampleFileName + ", " + queried + " clonotypes. " +
+                        matched.get() + " clonotypes matched and " + cacheHits.get() +
+                        " searches saved by cache so far.");
+            }
+        }
+
+        System.out.println("[" + (new Date()) + "] " +
+                "Done. Annotated " + sampleFileNames.length + " samples.");
+    }
+
+    /**
+     * Returns "cdr3.ref, subst, ins, del, antigens" output fields for all reference matches of a query cdr3.
+     */
+    private static String[] queryReference(String cdr3aa, SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm,
+                                           TreeSearchParameters tsp) {
+        for (int i = 0; i < cdr3aa.length(); i++) {
+            if (AminoAcidSequence.ALPHABET.symbolToCode(cdr3aa.charAt(i)) < 0) {
+                return new String[0]; // not a valid amino acid sequence, e.g. empty CDR3
+            }
+        }
+
+        AminoAcidSequence query = new AminoAcidSequence(cdr3aa);
+        NeighborhoodIterator<AminoAcidSequence, Cdr3Info> iter = stm.getNeighborhoodIterator(query, tsp);
+
+        Map<AminoAcidSequence, String> matches = new HashMap<>();
+        Cdr3Info referenceCdr3Info;
+
+        while ((referenceCdr3Info = iter.next()) != null) {
+            Alignment<AminoAcidSequence> alignment = iter.getCurrentAlignment();
+
+            if (alignment.getSequence1Range().length() == query.size() &&
+                    !matches.containsKey(referenceCdr3Info.cdr3)) { // only one alignment
+                Mutations<AminoAcidSequence> mutations = alignment.getAbsoluteMutations();
+
+                int subst = 0, ins = 0, del = 0;
+
+                for (int k = 0; k < mutations.size(); k++) {
+                    switch (mutations.getTypeByIndex(k)) {
+                        case Substitution:
+                            subst++;
+                            break;
+                        case Insertion:
+                            ins++;
+                            break;
+                        case Deletion:
+                            del++;
+                            break;
+                    }
+                }
+
+                matches.put(referenceCdr3Info.cdr3, referenceCdr3Info.cdr3 + "\t" +
+                        subst + "\t" + ins + "\t" + del + "\t" +
+                        String.join(",", referenceCdr3Info.getAntigens()));
+            }
+        }
+
+        return matches.values().toArray(new String[0]);
+    }
+
+    /**
+     * Bounded cache of reference search results. Queries are split by hash into segments with their own lock,
+     * each of which evicts its least recently used entry once full.
+     */
+    private static class QueryCache {
+        static final int SEGMENTS = 64;
+
+        private final List<LinkedHashMap<String, String[]>> segments = new ArrayList<>();
+        private final int segmentCapacity;
+
+        QueryCache(int capacity) {
+            this.segmentCapacity = (capacity + SEGMENTS - 1) / SEGMENTS;
+            for (int i = 0; i < SEGMENTS; i++) {
+                segments.add(new LinkedHashMap<>(16, 0.75f, true)); // iterated from least recently accessed
+            }
+        }
+
+        String[] get(String cdr3aa) {
+            LinkedHashMap<String, String[]> segment = getSegment(cdr3aa);
+            synchronized (segment) {
+                return segment.get(cdr3aa);
+            }
+        }
+
+        void put(String cdr3aa, String[] matches) {
+            LinkedHashMap<String, String[]> segment = getSegment(cdr3aa);
+            synchronized (segment) {
+                segment.put(cdr3aa, matches);
+                if (segment.size() > segmentCapacity) {
+                    Iterator<String> eldest = segment.keySet().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+
+        private LinkedHashMap<String, String[]> getSegment(String cdr3aa) {
+            return segments.get(Math.floorMod(cdr3aa.hashCode(), SEGMENTS));
+        }
+    }
+
+    private static Map<AminoAcidSequence, Cdr3Info> loadNodes(String fileName) throws IOException {
         final Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap = new HashMap<>();
-        try (Stream<String> stream = Files.lines(new File(inputFileName).toPath())) {
+        try (Stream<String> stream = Files.lines(new File(fileName).toPath())) {
             final boolean[] headerLine = {true};
             stream.forEach(line -> {
                 if (headerLine[0]) {
@@ -41,142 +567,251 @@ public class BuildHammingNet {
                 }
             });
         }
+        return cdr3AntigenMap;
+    }
 
-        System.out.println("Loaded " + cdr3AntigenMap.size() + " cdr3 sequences.");
-
-        final SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm = new SequenceTreeMap<>(AminoAcidSequence.ALPHABET);
-
-        cdr3AntigenMap.entrySet().forEach(kvp -> stm.put(kvp.getKey(), kvp.getValue()));
+    /**
+     * Copies edges of a previous network, dropping ones that connect removed cdr3 sequences and updating same.ag
+     * for cdr3 sequences which antigen sets have changed.
+     */
+    private static void updatePreviousEdges(String previousEdgesFileName,
+                                            Map<AminoAcidSequence, Cdr3Info> cdr3AntigenMap,
+                                            Map<AminoAcidSequence, Cdr3Info> previousCdr3AntigenMap,
+                                            int addedCount, LineWriter writer) throws IOException {
+        Set<String> removed = new HashSet<>(), changed = new HashSet<>();
+        for (Cdr3Info previousCdr3Info : previousCdr3AntigenMap.values()) {
+            Cdr3Info cdr3Info = cdr3AntigenMap.get(previousCdr3Info.cdr3);
+            if (cdr3Info == null) {
+                removed.add(previousCdr3Info.cdr3.toString());
+            } else if (!Arrays.equals(cdr3Info.antigenIds, previousCdr3Info.antigenIds)) {
+                changed.add(previousCdr3Info.cdr3.toString());
+            }
+        }
 
-        final TreeSearchParameters tsp = new TreeSearchParameters(maxSubstitutions, maxIndels, maxIndels);
+        int kept = 0, dropped = 0, updated = 0;
 
-        String header = "cdr3.1\tcdr3.2\tsame.ag\tsubst\tins\tdel\tedge.id\tweight";
+        try (BufferedReader br = new BufferedReader(new FileReader(previousEdgesFileName), 1 << 20)) {
+            String line;
+            List<String> lines = new ArrayList<>();
 
-        try (final PrintWriter pw = new PrintWriter(new File(outputFileName))) {
-            pw.println(header);
+            br.readLine(); // skip header
 
-            final Queue<String> lines = new ConcurrentLinkedQueue<>();
+            while ((line = br.readLine()) != null) {
+                int tab1 = line.indexOf('\t'), tab2 = line.indexOf('\t', tab1 + 1),
+                        tab3 = line.indexOf('\t', tab2 + 1);
+                String cdr3 = line.substring(0, tab1), otherCdr3 = line.substring(tab1 + 1, tab2);
 
-            Thread writeThread = new Thread(() -> {
-                while (true) {
-                    String value;
-                    while ((value = lines.poll()) != null) {
-                        if (value.equals("END")) {
-                            return;
-                        }
-                        pw.println(value);
-                    }
+                if (removed.contains(cdr3) || removed.contains(otherCdr3)) {
+                    dropped++;
+                    continue;
                 }
-            });
-            writeThread.start();
-
-            final AtomicInteger counter = new AtomicInteger();
-
-            cdr3AntigenMap.values().parallelStream().forEach(thisCdr3Info -> {
-                        AminoAcidSequence thisCdr3 = thisCdr3Info.cdr3;
-                        Cdr3Info otherCdr3Info;
-                        NeighborhoodIterator<AminoAcidSequence, Cdr3Info> iter = stm
-                                .getNeighborhoodIterator(thisCdr3, tsp);
 
-                        Map<AminoAcidSequence, AlignmentInfo> alignmentVariants = new HashMap<>();
+                if (changed.contains(cdr3) || changed.contains(otherCdr3)) {
+                    boolean sameAntigen = cdr3AntigenMap.get(new AminoAcidSequence(cdr3))
+                            .antigensOverlap(cdr3AntigenMap.get(new AminoAcidSequence(otherCdr3)));
+                    line = line.substring(0, tab2 + 1) + (sameAntigen ? 1 : 0) + line.substring(tab3);
+                    updated++;
+                }
 
-                        while ((otherCdr3Info = iter.next()) != null) {
-                            Alignment<AminoAcidSequence> alignment = iter.getCurrentAlignment();
+                lines.add(line);
+                kept++;
 
-                            if (thisCdr3Info.nonDuplicateComparison(otherCdr3Info) &&
-                                    alignment.getSequence1Range().length() == thisCdr3.size() &&
-                                    !alignmentVariants.containsKey(otherCdr3Info.cdr3)) { // only one alignment
-                                final AlignmentInfo alignmentInfo = new AlignmentInfo(
-                                        thisCdr3Info.antigensOverlap(otherCdr3Info),
-                                        alignment);
+                if (lines.size() == LineWriter.BATCH_SIZE) {
+                    writer.put(lines);
+                    lines = new ArrayList<>();
+                }
+            }
 
-                                alignmentVariants.put(otherCdr3Info.cdr3, alignmentInfo);
-                            }
-                        }
+            writer.put(lines);
+        }
 
-                        for (Map.Entry<AminoAcidSequence, AlignmentInfo> alignmentEntry :
-                                alignmentVariants.entrySet()) {
+        System.out.println("[" + (new Date()) + "] " +
+                "Incremental update: " + addedCount + " added, " + removed.size() + " removed and " +
+                changed.size() + " changed cdr3 sequences. Kept " + kept + " previous edges (" + updated +
+                " with updated same.ag), dropped " + dropped + ".");
+    }
 
-                            Mutations mutations = alignmentEntry.getValue().alignment.getAbsoluteMutations();
+    private static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Bad option '" + args[i] + "', should be --name=value.");
+            }
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                options.put(args[i].substring(2), "true");
+            } else {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            }
+        }
+        return options;
+    }
 
-                            // Count true number of mismatches
+    private static void queryTree(Cdr3Info thisCdr3Info, SequenceTreeMap<AminoAcidSequence, Cdr3Info> stm,
+                                  TreeSearchParameters tsp, Thresholds thresholds, EdgeVisitor visitor) {
+        AminoAcidSequence thisCdr3 = thisCdr3Info.cdr3;
+        Cdr3Info otherCdr3Info;
+        NeighborhoodIterator<AminoAcidSequence, Cdr3Info> iter = stm
+                .getNeighborhoodIterator(thisCdr3, tsp);
+
+        Map<AminoAcidSequence, AlignmentInfo[]> alignmentVariants = new HashMap<>();
+
+        while ((otherCdr3Info = iter.next()) != null) {
+            Alignment<AminoAcidSequence> alignment = iter.getCurrentAlignment();
+
+            if (thisCdr3Info.nonDuplicateComparison(otherCdr3Info) &&
+                    alignment.getSequence1Range().length() == thisCdr3.size()) {
+                Mutations<AminoAcidSequence> mutations = alignment.getAbsoluteMutations();
+
+                // Count true number of mismatches
+
+                int subst = 0, ins = 0, del = 0;
+
+                for (int k = 0; k < mutations.size(); k++) {
+                    switch (mutations.getTypeByIndex(k)) {
+                        case Substitution:
+                            subst++;
+                            break;
+                        case Insertion:
+                            ins++;
+                            break;
+                        case Deletion:
+                            del++;
+                            break;
+                    }
+                }
 
-                            int subst = 0, ins = 0, del = 0;
+                // only one alignment, the first one, is reported for each threshold, as in a separate search
+                // with it; thresholds are nested, so those after a filled one are filled too
 
-                            for (int k = 0; k < mutations.size(); k++) {
-                                switch (mutations.getTypeByIndex(k)) {
-                                    case Substitution:
-                                        subst++;
-                                        break;
-                                    case Insertion:
-                                        ins++;
-                                        break;
-                                    case Deletion:
-                                        del++;
-                                        break;
-                                }
-                            }
+                AlignmentInfo[] firstAlignments = alignmentVariants.computeIfAbsent(otherCdr3Info.cdr3,
+                        cdr3 -> new AlignmentInfo[thresholds.size()]);
 
-                            AminoAcidSequence otherCdr3 = alignmentEntry.getKey();
-                            String edgeId = thisCdr3 + " (pp) " + otherCdr3,
-                                    weight = Integer.toString(Math.max(otherCdr3.size(), thisCdr3.size()) -
-                                            subst - 3 * (ins + del));
+                for (int threshold = thresholds.getTightest(subst, ins, del);
+                     threshold < firstAlignments.length && firstAlignments[threshold] == null; threshold++) {
+                    firstAlignments[threshold] = new AlignmentInfo(thisCdr3Info.antigensOverlap(otherCdr3Info),
+                            otherCdr3Info, subst, ins, del, threshold);
+                }
+            }
+        }
 
-                            String line =
-                                    thisCdr3 + "\t" + otherCdr3 + "\t" +
-                                            (alignmentEntry.getValue().sameAntigen ? 1 : 0) + "\t" +
-                                            subst + "\t" + ins + "\t" + del + "\t" + edgeId + "\t" + weight;
+        for (AlignmentInfo[] firstAlignments : alignmentVariants.values()) {
+            for (AlignmentInfo alignmentInfo : firstAlignments) {
+                if (alignmentInfo != null) {
+                    visitor.visit(thisCdr3Info, alignmentInfo.other, alignmentInfo.sameAntigen,
+                            alignmentInfo.subst, alignmentInfo.ins, alignmentInfo.del, alignmentInfo.threshold);
+                }
+            }
+        }
+    }
 
-                            lines.add(line);
-                        }
+    private static int getWeight(AminoAcidSequence thisCdr3, AminoAcidSequence otherCdr3,
+                                 int subst, int ins, int del) {
+        return Math.max(otherCdr3.size(), thisCdr3.size()) - subst - 3 * (ins + del);
+    }
 
-                        int count = counter.incrementAndGet();
+    private static String formatEdge(AminoAcidSequence thisCdr3, AminoAcidSequence otherCdr3, boolean sameAntigen,
+                                     int subst, int ins, int del, String threshold) {
+        String edgeId = thisCdr3 + " (pp) " + otherCdr3,
+                weight = Integer.toString(getWeight(thisCdr3, otherCdr3, subst, ins, del));
 
-                        if (count % 100 == 0) {
-                            System.out.println("[" + (new Date()) + "] " +
-                                    "Queried " + count + " of " + cdr3AntigenMap.size() + " cdr3 sequences.");
-                        }
-                    }
-            );
+        return thisCdr3 + "\t" + otherCdr3 + "\t" +
+                (sameAntigen ? 1 : 0) + "\t" +
+                subst + "\t" + ins + "\t" + del + "\t" + edgeId + "\t" + weight +
+                (threshold != null ? "\t" + threshold : "");
+    }
 
-            lines.add("END");
+    private interface EdgeVisitor {
+        void visit(Cdr3Info thisCdr3Info, Cdr3Info otherCdr3Info, boolean sameAntigen, int subst, int ins, int del,
+                   int threshold);
+    }
 
-            writeThread.join();
+    /**
+     * Dense ids of strings in order of first occurrence, filled while loading and only read afterwards.
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int getId(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
 
-            System.out.println("[" + (new Date()) + "] " +
-                    "Done. Queried " + cdr3AntigenMap.size() + " cdr3 sequences.");
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        String get(int id) {
+            return values.get(id);
         }
     }
 
     private static class Cdr3Info {
+        static final Dictionary ANTIGENS = new Dictionary();
+
         final AminoAcidSequence cdr3;
-        final Set<String> antigens = new HashSet<>();
+        // sorted antigen ids and a mask with bit (id mod 64) set for each of them, the mask alone is exact
+        // as long as all ids are below 64
+        int[] antigenIds = new int[0];
+        long antigenMask;
+        int id;
 
         Cdr3Info(AminoAcidSequence cdr3) {
             this.cdr3 = cdr3;
         }
 
         void addAntigen(String antigen) {
-            antigens.add(antigen);
+            int antigenId = ANTIGENS.getId(antigen);
+            antigenIds = insert(antigenIds, antigenId);
+            antigenMask |= 1L << antigenId;
+        }
+
+        Set<String> getAntigens() {
+            Set<String> antigens = new TreeSet<>();
+            for (int antigenId : antigenIds) {
+                antigens.add(ANTIGENS.get(antigenId));
+            }
+            return antigens;
         }
 
         boolean antigensOverlap(Cdr3Info other) {
-            return overlaps(this.antigens, other.antigens);
+            if ((antigenMask & other.antigenMask) == 0) {
+                return false;
+            }
+            if (antigenIds[antigenIds.length - 1] < 64 && other.antigenIds[other.antigenIds.length - 1] < 64) {
+                return true;
+            }
+            return overlaps(antigenIds, other.antigenIds);
         }
 
         boolean nonDuplicateComparison(Cdr3Info otherCdr3Info) {
             return cdr3.compareTo(otherCdr3Info.cdr3) > 0;
         }
 
-        private static boolean overlaps(Set<String> set1, Set<String> set2) {
-            if (set1.size() > set2.size()) {
-                return overlaps(set2, set1);
+        private static int[] insert(int[] ids, int id) {
+            int index = Arrays.binarySearch(ids, id);
+            if (index >= 0) {
+                return ids;
             }
-            for (String value : set1) {
-                if (set2.contains(value))
+            index = -index - 1;
+            int[] newIds = new int[ids.length + 1];
+            System.arraycopy(ids, 0, newIds, 0, index);
+            newIds[index] = id;
+            System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+            return newIds;
+        }
+
+        private static boolean overlaps(int[] ids1, int[] ids2) {
+            for (int i = 0, j = 0; i < ids1.length && j < ids2.length; ) {
+                if (ids1[i] == ids2[j]) {
                     return true;
+                } else if (ids1[i] < ids2[j]) {
+                    i++;
+                } else {
+                    j++;
+                }
             }
             return false;
         }
@@ -184,11 +819,16 @@ public class BuildHammingNet {
 
     private static class AlignmentInfo {
         final boolean sameAntigen;
-        final Alignment<AminoAcidSequence> alignment;
+        final Cdr3Info other;
+        final int subst, ins, del, threshold;
 
-        AlignmentInfo(boolean sameAntigen, Alignment<AminoAcidSequence> alignment) {
+        AlignmentInfo(boolean sameAntigen, Cdr3Info other, int subst, int ins, int del, int threshold) {
             this.sameAntigen = sameAntigen;
-            this.alignment = alignment;
+            this.other = other;
+            this.subst = subst;
+            this.ins = ins;
+            this.del = del;
+            this.threshold = threshold;
         }
     }
 }
@@ -0,0 +1,53 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free disjoint set forest for connected components of a graph discovered by concurrent workers.
+ * <p>
+ * Roots are linked by CAS, always attaching the larger index to the smaller one, so no cycles can form. Paths are
+ * shortened by CAS path halving during find, failed CASes are harmless as any ancestor is a valid parent.
+ */
+class ConcurrentUnionFind {
+    private final AtomicIntegerArray parent;
+
+    ConcurrentUnionFind(int size) {
+        this.parent = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            parent.set(i, i);
+        }
+    }
+
+    int size() {
+        return parent.length();
+    }
+
+    int find(int i) {
+        while (true) {
+            int p = parent.get(i);
+            if (p == i) {
+                return i;
+            }
+            int gp = parent.get(p);
+            if (p != gp) {
+                parent.compareAndSet(i, p, gp);
+            }
+            i = gp;
+        }
+    }
+
+    void union(int i, int j) {
+        while (true) {
+            int root1 = find(i), root2 = find(j);
+            if (root1 == root2) {
+                return;
+            }
+            if (root1 < root2) {
+                int tmp = root1;
+                root1 = root2;
+                root2 = tmp;
+            }
+            if (parent.compareAndSet(root1, root1, root2)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact binary network: edges stored in compressed sparse row (CSR) layout over int node ids, one row per
+ * cdr3.1 node, with edge fields packed into a single int.
+ * <p>
+ * File layout (big-endian): magic, node count, edge count, node count + 1 long row offsets, then target node
+ * ids and packed fields of all edges. Node ids refer to lines of an accompanying node dictionary.
+ */
+class CsrGraph {
+    static final long MAGIC = 0x4344523343535231L; // "CDR3CSR1"
+
+    final int nodes;
+    final long[] offsets;
+    final int[] targets, fields;
+
+    private CsrGraph(int nodes, long[] offsets, int[] targets, int[] fields) {
+        this.nodes = nodes;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.fields = fields;
+    }
+
+    /**
+     * Packs edge fields: subst (8 bits), ins (6), del (6), same.ag (1) and signed weight (11).
+     */
+    static int pack(boolean sameAntigen, int subst, int ins, int del, int weight) {
+        if (subst > 255 || ins > 63 || del > 63 || weight < -1024 || weight > 1023) {
+            throw new IllegalArgumentException("Edge fields out of range.");
+        }
+        return subst | (ins << 8) | (del << 14) | ((sameAntigen ? 1 : 0) << 20) | (weight << 21);
+    }
+
+    static int getSubst(int fields) {
+        return fields & 0xFF;
+    }
+
+    static int getIns(int fields) {
+        return (fields >>> 8) & 0x3F;
+    }
+
+    static int getDel(int fields) {
+        return (fields >>> 14) & 0x3F;
+    }
+
+    static boolean isSameAntigen(int fields) {
+        return ((fields >>> 20) & 1) != 0;
+    }
+
+    static int getWeight(int fields) {
+        return fields >> 21;
+    }
+
+    static CsrGraph read(File file) throws IOException {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+            if (is.readLong() != MAGIC) {
+                throw new IOException(file + " is not a binary network file.");
+            }
+            int nodes = is.readInt(), edges = is.readInt();
+            long[] offsets = new long[nodes + 1];
+            int[] targets = new int[edges], fields = new int[edges];
+            for (int i = 0; i <= nodes; i++) {
+                offsets[i] = is.readLong();
+            }
+            for (int i = 0; i < edges; i++) {
+                targets[i] = is.readInt();
+            }
+            for (int i = 0; i < edges; i++) {
+                fields[i] = is.readInt();
+            }
+            return new CsrGraph(nodes, offsets, targets, fields);
+        }
+    }
+
+    /**
+     * Collects edges from concurrent workers in any order and writes them sorted by source node. Each worker
+     * thread appends to its own buffer, buffers are only merged when writing.
+     */
+    static class Builder {
+        static final int MAX_EDGES = Integer.MAX_VALUE - 8;
+
+        final int nodes;
+        private final List<Buffer> buffers = Collections.synchronizedList(new ArrayList<>());
+        private final ThreadLocal<Buffer> threadBuffer = ThreadLocal.withInitial(() -> {
+            Buffer buffer = new Buffer();
+            buffers.add(buffer);
+            return buffer;
+        });
+
+        Builder(int nodes) {
+            this.nodes = nodes;
+        }
+
+        void add(int source, int target, int packedFields) {
+            threadBuffer.get().add(source, target, packedFields);
+        }
+
+        long size() {
+            long size = 0;
+            synchronized (buffers) {
+                for (Buffer buffer : buffers) {
+                    size += buffer.size;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Writes all edges, should only be called once all workers are done.
+         */
+        void write(File file) throws IOException {
+            long totalSize = size();
+            if (totalSize > MAX_EDGES) {
+                throw new IllegalStateException("More than " + MAX_EDGES + " edges in a binary network.");
+            }
+            int size = (int) totalSize;
+
+            // counting sort by source node
+
+            long[] offsets = new long[nodes + 1];
+            for (Buffer buffer : buffers) {
+                for (int i = 0; i < buffer.size; i++) {
+                    offsets[buffer.sources[i] + 1]++;
+                }
+            }
+            for (int i = 0; i < nodes; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+
+            int[] sortedTargets = new int[size], sortedFields = new int[size];
+            long[] next = Arrays.copyOf(offsets, nodes);
+            for (Buffer buffer : buffers) {
+                for (int i = 0; i < buffer.size; i++) {
+                    int position = (int) next[buffer.sources[i]]++;
+                    sortedTargets[position] = buffer.targets[i];
+                    sortedFields[position] = buffer.fields[i];
+                }
+            }
+
+            try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    1 << 20))) {
+                os.writeLong(MAGIC);
+                os.writeInt(nodes);
+                os.writeInt(size);
+                for (long offset : offsets) {
+                    os.writeLong(offset);
+                }
+                for (int target : sortedTargets) {
+                    os.writeInt(target);
+                }
+                for (int packedFields : sortedFields) {
+                    os.writeInt(packedFields);
+                }
+            }
+        }
+
+        private static class Buffer {
+            int[] sources = new int[1024], targets = new int[1024], fields = new int[1024];
+            int size;
+
+            void add(int source, int target, int packedFields) {
+                if (size == sources.length) {
+                    if (size == MAX_EDGES) {
+                        throw new IllegalStateException("More than " + MAX_EDGES + " edges in a binary network.");
+                    }
+                    int capacity = (int) Math.min((long) size * 2, MAX_EDGES);
+                    sources = Arrays.copyOf(sources, capacity);
+                    targets = Arrays.copyOf(targets, capacity);
+                    fields = Arrays.copyOf(fields, capacity);
+                }
+                sources[size] = source;
+                targets[size] = target;
+                fields[size] = packedFields;
+                size++;
+            }
+        }
+    }
+}
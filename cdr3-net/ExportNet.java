@@ -0,0 +1,38 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Exports a binary network written by BuildHammingNet --binary to the text edge table format.
+ */
+public class ExportNet {
+    public static void main(String[] args) throws IOException {
+        String prefix = args[0], outputFileName = args[1];
+
+        List<String> cdr3s = Files.readAllLines(new File(prefix + ".nodes.txt").toPath());
+        cdr3s = cdr3s.subList(1, cdr3s.size()); // skip header
+
+        CsrGraph graph = CsrGraph.read(new File(prefix + ".csr"));
+
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(outputFileName), 1 << 20))) {
+            pw.println("cdr3.1\tcdr3.2\tsame.ag\tsubst\tins\tdel\tedge.id\tweight");
+
+            for (int node = 0; node < graph.nodes; node++) {
+                String thisCdr3 = cdr3s.get(node);
+                for (long i = graph.offsets[node]; i < graph.offsets[node + 1]; i++) {
+                    String otherCdr3 = cdr3s.get(graph.targets[(int) i]);
+                    int fields = graph.fields[(int) i];
+                    pw.println(thisCdr3 + "\t" + otherCdr3 + "\t" +
+                            (CsrGraph.isSameAntigen(fields) ? 1 : 0) + "\t" +
+                            CsrGraph.getSubst(fields) + "\t" + CsrGraph.getIns(fields) + "\t" +
+                            CsrGraph.getDel(fields) + "\t" +
+                            thisCdr3 + " (pp) " + otherCdr3 + "\t" + CsrGraph.getWeight(fields));
+                }
+            }
+        }
+
+        System.out.println("[" + (new Date()) + "] " +
+                "Exported " + graph.targets.length + " edges between " + graph.nodes + " cdr3 sequences.");
+    }
+}
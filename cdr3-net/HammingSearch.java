@@ -0,0 +1,207 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.milaboratory.core.sequence.AminoAcidSequence;
+
+/**
+ * Substitution-only neighbor search, a faster replacement for SequenceTreeMap neighborhood iteration when no
+ * indels are allowed.
+ * <p>
+ * Sequences are bucketed by length and packed into 5-bit amino acid codes, 12 per long word, so that the number
+ * of mismatches is computed with XOR and popcount. Candidates are found by pigeonhole segment indexing: sequences
+ * within maxSubstitutions mismatches share at least one of maxSubstitutions + 1 segments exactly. Each bucket
+ * keeps one sorted array of (segment hash, sequence id) entries per segment.
+ */
+class HammingSearch {
+    interface NeighborVisitor {
+        void visit(int id1, int id2, int substitutions);
+    }
+
+    static final int CODES_PER_WORD = 12;
+    private static final long LOW_BITS;
+
+    static {
+        long lowBits = 0;
+        for (int i = 0; i < CODES_PER_WORD; i++) {
+            lowBits |= 1L << (5 * i);
+        }
+        LOW_BITS = lowBits;
+    }
+
+    final AminoAcidSequence[] sequences;
+    final int maxSubstitutions;
+    private final long[][] packed;
+    private final Map<Integer, Bucket> buckets = new HashMap<>();
+
+    HammingSearch(AminoAcidSequence[] sequences, int maxSubstitutions) {
+        if (AminoAcidSequence.ALPHABET.size() > 32) {
+            throw new IllegalStateException("Amino acid alphabet does not fit 5-bit codes.");
+        }
+
+        this.sequences = sequences;
+        this.maxSubstitutions = maxSubstitutions;
+        this.packed = new long[sequences.length][];
+
+        // group ids by length via sorted (length, id) keys
+
+        long[] lengthIds = new long[sequences.length];
+        for (int id = 0; id < sequences.length; id++) {
+            packed[id] = pack(sequences[id]);
+            lengthIds[id] = ((long) sequences[id].size() << 32) | id;
+        }
+        Arrays.sort(lengthIds);
+
+        for (int from = 0, to; from < lengthIds.length; from = to) {
+            int length = (int) (lengthIds[from] >>> 32);
+            to = from + 1;
+            while (to < lengthIds.length && (int) (lengthIds[to] >>> 32) == length) {
+                to++;
+            }
+            int[] ids = new int[to - from];
+            for (int i = from; i < to; i++) {
+                ids[i - from] = (int) lengthIds[i];
+            }
+            buckets.put(length, new Bucket(length, ids));
+        }
+    }
+
+    static long[] pack(AminoAcidSequence sequence) {
+        long[] words = new long[(sequence.size() + CODES_PER_WORD - 1) / CODES_PER_WORD];
+        for (int i = 0; i < sequence.size(); i++) {
+            words[i / CODES_PER_WORD] |= (long) sequence.codeAt(i) << (5 * (i % CODES_PER_WORD));
+        }
+        return words;
+    }
+
+    /**
+     * Visits all sequences with id below toId that differ from a given sequence by at most maxSubstitutions
+     * substitutions. Querying every id with toId = id visits each pair exactly once.
+     */
+    void forEachNeighbor(int id, int toId, NeighborVisitor visitor) {
+        Bucket bucket = buckets.get(sequences[id].size());
+        if (bucket != null) {
+            bucket.forEachNeighbor(id, toId, visitor);
+        }
+    }
+
+    /**
+     * Sequences of the same length. Positions are split into segments of roughly equal total entropy rather than
+     * into contiguous ranges, so that conserved positions (e.g. CASS) do not make a segment shared by most of
+     * the sequences.
+     */
+    private class Bucket {
+        final int segments;
+        final int[][] segmentPositions;
+        final long[][] segmentMasks;
+        final long[][] entries;
+
+        Bucket(int length, int[] ids) {
+            // sequences not longer than maxSubstitutions are all neighbors, single empty segment
+            this.segments = length > maxSubstitutions ? maxSubstitutions + 1 : 1;
+            this.segmentPositions = new int[segments][0];
+            this.segmentMasks = new long[segments][(length + CODES_PER_WORD - 1) / CODES_PER_WORD];
+
+            if (length > maxSubstitutions) {
+                double[] entropy = new double[length];
+                int[] counts = new int[32];
+                for (int i = 0; i < length; i++) {
+                    Arrays.fill(counts, 0);
+                    for (int id : ids) {
+                        counts[sequences[id].codeAt(i)]++;
+                    }
+                    for (int count : counts) {
+                        if (count > 0) {
+                            double p = (double) count / ids.length;
+                            entropy[i] -= p * Math.log(p);
+                        }
+                    }
+                }
+
+                // greedily assign positions by decreasing entropy to the segment with the least total
+                Integer[] positions = new Integer[length];
+                for (int i = 0; i < length; i++) {
+                    positions[i] = i;
+                }
+                Arrays.sort(positions, (i, j) -> Double.compare(entropy[j], entropy[i]));
+
+                double[] segmentEntropy = new double[segments];
+                for (int i : positions) {
+                    int best = 0;
+                    for (int t = 1; t < segments; t++) {
+                        if (segmentEntropy[t] < segmentEntropy[best] ||
+                                (segmentEntropy[t] == segmentEntropy[best] &&
+                                        segmentPositions[t].length < segmentPositions[best].length)) {
+                            best = t;
+                        }
+                    }
+                    segmentEntropy[best] += entropy[i];
+                    segmentPositions[best] = Arrays.copyOf(segmentPositions[best],
+                            segmentPositions[best].length + 1);
+                    segmentPositions[best][segmentPositions[best].length - 1] = i;
+                    segmentMasks[best][i / CODES_PER_WORD] |= 31L << (5 * (i % CODES_PER_WORD));
+                }
+            }
+
+            this.entries = new long[segments][ids.length];
+            for (int s = 0; s < segments; s++) {
+                for (int i = 0; i < ids.length; i++) {
+                    entries[s][i] = ((long) segmentHash(ids[i], s) << 32) | ids[i];
+                }
+                Arrays.sort(entries[s]);
+            }
+        }
+
+        int segmentHash(int id, int segment) {
+            AminoAcidSequence sequence = sequences[id];
+            int hash = 0;
+            for (int i : segmentPositions[segment]) {
+                hash = hash * 31 + sequence.codeAt(i);
+            }
+            return hash & Integer.MAX_VALUE;
+        }
+
+        void forEachNeighbor(int id, int toId, NeighborVisitor visitor) {
+            long[] words = packed[id];
+
+            for (int s = 0; s < segments; s++) {
+                long hash = segmentHash(id, s);
+                long[] segmentEntries = entries[s];
+
+                int from = Arrays.binarySearch(segmentEntries, hash << 32);
+                from = from < 0 ? -from - 1 : from;
+
+                for (int i = from; i < segmentEntries.length && (segmentEntries[i] >>> 32) == hash; i++) {
+                    int otherId = (int) segmentEntries[i];
+                    if (otherId >= toId || otherId == id) {
+                        continue;
+                    }
+
+                    // report the pair only for the first segment that matches exactly
+                    long[] otherWords = packed[otherId];
+                    int firstMatch = -1, substitutions = 0;
+                    for (int t = 0; t < segments && firstMatch < 0; t++) {
+                        boolean match = true;
+                        for (int w = 0; w < words.length && match; w++) {
+                            match = ((words[w] ^ otherWords[w]) & segmentMasks[t][w]) == 0;
+                        }
+                        if (match) {
+                            firstMatch = t;
+                        }
+                    }
+
+                    if (firstMatch == s) {
+                        for (int w = 0; w < words.length; w++) {
+                            long x = words[w] ^ otherWords[w];
+                            substitutions += Long.bitCount((x | (x >>> 1) | (x >>> 2) | (x >>> 3) | (x >>> 4)) &
+                                    LOW_BITS);
+                        }
+                        if (substitutions <= maxSubstitutions) {
+                            visitor.visit(id, otherId, substitutions);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,3 +1,29 @@
 Rscript preprocess.R
 mvn clean install
 java -Xmx4G -jar target/cdr3net-0.0.1.jar 3 0 vdjdb.nodes.txt vdjdb.edges.txt
+
+# incremental update for a new VDJdb release, previous network should be built with the same parameters:
+# java -Xmx4G -jar target/cdr3net-0.0.1.jar 3 0 vdjdb.nodes.txt vdjdb.edges.new.txt \
+#     --previous-nodes=vdjdb.nodes.old.txt --previous-edges=vdjdb.edges.old.txt
+
+# binary output for large inputs: vdjdb.net.nodes.txt node dictionary and vdjdb.net.csr edges,
+# convert back to the edge table with ExportNet
+# java -Xmx4G -jar target/cdr3net-0.0.1.jar 3 0 vdjdb.nodes.txt vdjdb.net --binary
+# java -cp target/cdr3net-0.0.1.jar ExportNet vdjdb.net vdjdb.edges.txt
+
+# annotate VDJtools samples, plain or gzipped, against VDJdb: one line per matching clonotype and VDJdb cdr3,
+# cache of up to --annotate-cache (1000000 by default) recently searched cdr3 sequences is shared across samples;
+# not combined with --binary, --clusters or incremental update
+# java -Xmx8G -jar target/cdr3net-0.0.1.jar 1 0 vdjdb.nodes.txt annotation.txt.gz --annotate=sample1.txt,sample2.txt
+
+# clusters (connected components) with antigen purity, written to vdjdb.net.clusters.txt and
+# vdjdb.net.clusters.summary.txt; --no-edges skips the edge list
+# java -Xmx4G -jar target/cdr3net-0.0.1.jar 3 0 vdjdb.nodes.txt vdjdb.net --clusters --no-edges
+
+# several nested thresholds in a single search, each edge is written once for every threshold it satisfies with
+# the alignment a separate run with that threshold reports, e.g. edges with threshold == "1:0" are those of a
+# 1 0 run
+# java -Xmx4G -jar target/cdr3net-0.0.1.jar 3 0 vdjdb.nodes.txt vdjdb.edges.txt --thresholds=1:0,2:0
+
+# queries are run from the most expensive ones on --threads worker threads, all available cores by default
+# java -Xmx4G -jar target/cdr3net-0.0.1.jar 2 1 vdjdb.nodes.txt vdjdb.edges.txt --threads=16
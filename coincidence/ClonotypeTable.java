@@ -0,0 +1,244 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact table of clonotypes with dense int IDs.
+ * <p>
+ * CDR3 sequences are packed into a single byte arena and indexed with an open-addressing hash table that can be
+ * probed directly with a byte range of an input buffer. V and J genes are interned into small int IDs. The only
+ * per-clonotype storage is a few ints, there are no per-clonotype objects.
+ */
+class ClonotypeTable {
+    private byte[] arena = new byte[1 << 16];
+    private int[] offsets = new int[1024], vIds = new int[1024], jIds = new int[1024], slots = new int[2048];
+    private int size, mask = slots.length - 1;
+
+    private final List<byte[]> genes = new ArrayList<>();
+    private final Map<String, Integer> geneIds = new HashMap<>();
+
+    /**
+     * Adds a clonotype or updates V and J of an existing one, returns clonotype ID.
+     */
+    int put(String cdr3, String v, String j) {
+        byte[] bytes = cdr3.getBytes(StandardCharsets.US_ASCII);
+        int id = find(bytes, 0, bytes.length);
+
+        if (id < 0) {
+            id = append(bytes);
+        }
+
+        vIds[id] = internGene(v);
+        jIds[id] = internGene(j);
+
+        return id;
+    }
+
+    private int append(byte[] bytes) {
+        if (size + 1 >= offsets.length) {
+            int capacity = offsets.length * 2;
+            vIds = Arrays.copyOf(vIds, capacity);
+            jIds = Arrays.copyOf(jIds, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+
+        int offset = offsets[size];
+        if ((long) offset + bytes.length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("CDR3 arena overflow: " + size + " clonotypes.");
+        }
+        if (offset + bytes.length > arena.length) {
+            arena = Arrays.copyOf(arena, (int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max((long) arena.length * 2, offset + bytes.length)));
+        }
+        System.arraycopy(bytes, 0, arena, offset, bytes.length);
+        offsets[size + 1] = offset + bytes.length;
+
+        int id = size++;
+
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            insert(id);
+        }
+
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    private void insert(int id) {
+        int slot = hash(arena, offsets[id], offsets[id + 1]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = id + 1;
+    }
+
+    private int internGene(String gene) {
+        Integer id = geneIds.get(gene);
+        if (id == null) {
+            id = genes.size();
+            genes.add(gene.getBytes(StandardCharsets.US_ASCII));
+            geneIds.put(gene, id);
+        }
+        return id;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ID of a CDR3 stored in buffer[from, to), or -1 if it is not in the table.
+     */
+    int find(byte[] buffer, int from, int to) {
+        int slot = hash(buffer, from, to) & mask, entry;
+        while ((entry = slots[slot]) != 0) {
+            if (compare(entry - 1, buffer, from, to) == 0) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Writes "cdr3\tv\tj" of a given clonotype.
+     */
+    void writeLabel(int id, RowWriter writer) {
+        writer.write(arena, offsets[id], offsets[id + 1] - offsets[id]);
+        writer.write('\t');
+        writer.write(genes.get(vIds[id]));
+        writer.write('\t');
+        writer.write(genes.get(jIds[id]));
+    }
+
+    /**
+     * Returns a copy of the table with IDs re-assigned in CDR3 order (same as String order for ASCII),
+     * and arrays trimmed to size.
+     */
+    ClonotypeTable sorted() {
+        int[] order = new int[size];
+        for (int id = 0; id < size; id++) {
+            order[id] = id;
+        }
+        mergeSort(order, new int[size], 0, size);
+
+        ClonotypeTable sorted = new ClonotypeTable();
+        sorted.arena = new byte[offsets[size]];
+        sorted.offsets = new int[size + 1];
+        sorted.vIds = new int[size];
+        sorted.jIds = new int[size];
+        sorted.genes.addAll(genes);
+        sorted.geneIds.putAll(geneIds);
+
+        for (int newId = 0; newId < size; newId++) {
+            int id = order[newId], length = offsets[id + 1] - offsets[id];
+            System.arraycopy(arena, offsets[id], sorted.arena, sorted.offsets[newId], length);
+            sorted.offsets[newId + 1] = sorted.offsets[newId] + length;
+            sorted.vIds[newId] = vIds[id];
+            sorted.jIds[newId] = jIds[id];
+        }
+
+        sorted.size = size;
+        sorted.rehash(Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1);
+
+        return sorted;
+    }
+
+    void write(DataOutputStream os) throws IOException {
+        os.writeInt(size);
+        os.writeInt(offsets[size]);
+        os.write(arena, 0, offsets[size]);
+        for (int id = 0; id < size; id++) {
+            os.writeInt(offsets[id + 1] - offsets[id]);
+            os.writeInt(vIds[id]);
+            os.writeInt(jIds[id]);
+        }
+        os.writeInt(genes.size());
+        for (byte[] gene : genes) {
+            os.writeInt(gene.length);
+            os.write(gene);
+        }
+    }
+
+    static ClonotypeTable read(DataInputStream is) throws IOException {
+        ClonotypeTable table = new ClonotypeTable();
+        int size = is.readInt();
+        table.arena = new byte[is.readInt()];
+        is.readFully(table.arena);
+        table.offsets = new int[size + 1];
+        table.vIds = new int[size];
+        table.jIds = new int[size];
+        for (int id = 0; id < size; id++) {
+            table.offsets[id + 1] = table.offsets[id] + is.readInt();
+            table.vIds[id] = is.readInt();
+            table.jIds[id] = is.readInt();
+        }
+        for (int i = is.readInt(); i > 0; i--) {
+            byte[] gene = new byte[is.readInt()];
+            is.readFully(gene);
+            table.geneIds.put(new String(gene, StandardCharsets.US_ASCII), table.genes.size());
+            table.genes.add(gene);
+        }
+        table.size = size;
+        table.rehash(Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1);
+        return table;
+    }
+
+    private void mergeSort(int[] ids, int[] buffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(ids, buffer, from, mid);
+        mergeSort(ids, buffer, mid, to);
+        if (compare(ids[mid - 1], arena, offsets[ids[mid]], offsets[ids[mid] + 1]) <= 0) {
+            return; // already in order
+        }
+        System.arraycopy(ids, from, buffer, from, to - from);
+        for (int i = from, left = from, right = mid; i < to; i++) {
+            if (right >= to || (left < mid &&
+                    compare(buffer[left], arena, offsets[buffer[right]], offsets[buffer[right] + 1]) <= 0)) {
+                ids[i] = buffer[left++];
+            } else {
+                ids[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * Compares CDR3 of a given clonotype with buffer[from, to) lexicographically by unsigned bytes.
+     */
+    private int compare(int id, byte[] buffer, int from, int to) {
+        int offset = offsets[id], length = offsets[id + 1] - offset, otherLength = to - from;
+        for (int i = 0; i < Math.min(length, otherLength); i++) {
+            int diff = (arena[offset + i] & 0xFF) - (buffer[from + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - otherLength;
+    }
+
+    private static int hash(byte[] buffer, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + buffer[i];
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
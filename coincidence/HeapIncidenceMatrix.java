@@ -0,0 +1,33 @@
+/**
+ * Incidence matrix stored in a single long[] on the heap.
+ */
+class HeapIncidenceMatrix extends IncidenceMatrix {
+    final long[] bits;
+
+    HeapIncidenceMatrix(int rows, int samples) {
+        super(rows, samples);
+
+        long size = (long) rows * words;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Incidence matrix of " + rows + " x " + samples +
+                    " does not fit in a single array, use a memory-mapped one.");
+        }
+
+        this.bits = new long[(int) size];
+    }
+
+    @Override
+    long getWord(long index) {
+        return bits[(int) index];
+    }
+
+    @Override
+    void setWord(long index, long value) {
+        bits[(int) index] = value;
+    }
+
+    @Override
+    void copyRows(int from, int to, long[] dst) {
+        System.arraycopy(bits, from * words, dst, 0, (to - from) * words);
+    }
+}
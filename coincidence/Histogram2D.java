@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 2D histogram with per-thread primitive counters that are merged once counting is finished.
+ * <p>
+ * Each axis has bins + 1 grid points: value is assigned to coordinate (int) ((value - min) * bins / (max - min)),
+ * values with coordinate below 0 or above bins go to the underflow and overflow slots of the axis.
+ * Counters are stored in a flat long[] with (bins + 3) slots per axis: underflow, coordinates 0..bins, overflow.
+ */
+class Histogram2D {
+    final int xBins, yBins;
+    final double xMin, xMax, yMin, yMax;
+    private final int xSlots, ySlots;
+
+    private final List<long[]> partials = new ArrayList<>();
+    private final ThreadLocal<long[]> local = ThreadLocal.withInitial(this::newPartial);
+
+    Histogram2D(int xBins, double xMin, double xMax,
+                int yBins, double yMin, double yMax) {
+        if (xBins <= 0 || yBins <= 0 || !(xMax > xMin) || !(yMax > yMin)) {
+            throw new IllegalArgumentException("Bad histogram layout: " +
+                    xBins + " bins in [" + xMin + ", " + xMax + "], " +
+                    yBins + " bins in [" + yMin + ", " + yMax + "].");
+        }
+        this.xBins = xBins;
+        this.xMin = xMin;
+        this.xMax = xMax;
+        this.yBins = yBins;
+        this.yMin = yMin;
+        this.yMax = yMax;
+        this.xSlots = xBins + 3;
+        this.ySlots = yBins + 3;
+    }
+
+    int getSize() {
+        return xSlots * ySlots;
+    }
+
+    /**
+     * Flat counter index for a given point, used to index arrays returned by {@link #getLocal()}.
+     */
+    int getIndex(double x, double y) {
+        return slot(x, xMin, xMax, xBins) * ySlots + slot(y, yMin, yMax, yBins);
+    }
+
+    /**
+     * Flat counter index for given axis coordinates, coordinates range from -1 (underflow) to bins + 1 (overflow).
+     */
+    int getIndex(int xCoord, int yCoord) {
+        return (xCoord + 1) * ySlots + (yCoord + 1);
+    }
+
+    private static int slot(double value, double min, double max, int bins) {
+        int coord = (int) ((value - min) * bins / (max - min));
+        return coord < 0 ? 0 : (coord > bins ? bins + 2 : coord + 1);
+    }
+
+    double getXValue(int xCoord) {
+        return xMin + xCoord / (double) xBins * (xMax - xMin);
+    }
+
+    double getYValue(int yCoord) {
+        return yMin + yCoord / (double) yBins * (yMax - yMin);
+    }
+
+    /**
+     * Counters of the calling thread, increment them with {@code counts[getIndex(x, y)]++}.
+     */
+    long[] getLocal() {
+        return local.get();
+    }
+
+    private long[] newPartial() {
+        long[] partial = new long[getSize()];
+        synchronized (partials) {
+            partials.add(partial);
+        }
+        return partial;
+    }
+
+    /**
+     * Adds counters from an external partial, e.g. one stored on disk.
+     */
+    void add(long[] counts) {
+        if (counts.length != getSize()) {
+            throw new IllegalArgumentException("Histogram layout mismatch, expected " + getSize() +
+                    " counters, got " + counts.length + ".");
+        }
+        long[] partial = newPartial();
+        System.arraycopy(counts, 0, partial, 0, counts.length);
+    }
+
+    /**
+     * Sums all partials, should only be called after all threads are done counting.
+     */
+    long[] merge() {
+        long[] counts = new long[getSize()];
+        synchronized (partials) {
+            for (long[] partial : partials) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += partial[i];
+                }
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,156 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lookup tables of coincidence statistics (log odds, log P-value, volcano histogram index and pass/fail flag)
+ * for each possible value of n12 given incidences n1 and n2. For passing n12 values, the statistics part of
+ * the output row is also pre-encoded.
+ * <p>
+ * A run only sees nSamples distinct values of n1 and n2, so tables are built lazily for each (n1, n2)
+ * combination on first use, concurrently and without locking. The total number of cached entries is bounded,
+ * tables that were not used since the previous sweep are evicted in CLOCK order when the bound is exceeded.
+ */
+class HypergeometricTables {
+    final int nSamples;
+    final double pValueThreshold, logOddsThreshold;
+    final long maxCells;
+    final Histogram2D volcano;
+
+    private final AtomicReferenceArray<Table> tables;
+    private final AtomicLong cells = new AtomicLong(), built = new AtomicLong(), evicted = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private int clockHand;
+
+    HypergeometricTables(int nSamples, double pValueThreshold, double logOddsThreshold, long maxCells,
+                         Histogram2D volcano) {
+        this.nSamples = nSamples;
+        this.pValueThreshold = pValueThreshold;
+        this.logOddsThreshold = logOddsThreshold;
+        this.maxCells = maxCells;
+        this.volcano = volcano;
+        this.tables = new AtomicReferenceArray<>((nSamples + 1) * (nSamples + 1));
+    }
+
+    Table get(int n1, int n2) {
+        int slot = n1 * (nSamples + 1) + n2;
+        Table table = tables.get(slot);
+
+        if (table == null) {
+            table = new Table(n1, n2);
+            if (tables.compareAndSet(slot, null, table)) {
+                built.incrementAndGet();
+                if (cells.addAndGet(table.size()) > maxCells) {
+                    evict();
+                }
+            } else {
+                table = tables.get(slot);
+                if (table == null) { // evicted right away, use the one we have built
+                    return new Table(n1, n2);
+                }
+            }
+        }
+
+        if (!table.referenced) {
+            table.referenced = true;
+        }
+
+        return table;
+    }
+
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return; // some other thread is already at it
+        }
+
+        try {
+            long target = maxCells * 3 / 4;
+            int slots = tables.length();
+            // at most two full turns: the first one clears reference flags, the second one evicts
+            for (int i = 0; i < 2 * slots && cells.get() > target; i++) {
+                Table table = tables.get(clockHand);
+                if (table != null) {
+                    if (table.referenced) {
+                        table.referenced = false;
+                    } else if (tables.compareAndSet(clockHand, table, null)) {
+                        cells.addAndGet(-table.size());
+                        evicted.incrementAndGet();
+                    }
+                }
+                clockHand = (clockHand + 1) % slots;
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    long getBuiltCount() {
+        return built.get();
+    }
+
+    long getEvictedCount() {
+        return evicted.get();
+    }
+
+    final class Table {
+        final int n12Min;
+        final double[] logOdds, logPValue;
+        final int[] volcanoIndex;
+        final boolean[] passes;
+        final byte[][] rowSuffix;
+        volatile boolean referenced = true;
+
+        private Table(int n1, int n2) {
+            // http://journals.sagepub.com.sci-hub.cc/doi/pdf/10.2466/pms.1998.87.1.51
+            // Cumulative hypergeometric recursion is done once for all n12 in [v, w], same arithmetic as
+            // computing mid-P for a single n12
+
+            int v = Math.max(0, n1 + n2 - nSamples),
+                    w = Math.min(n1, n2), size = w - v + 1;
+
+            this.n12Min = v;
+            this.logOdds = new double[size];
+            this.logPValue = new double[size];
+            this.volcanoIndex = new int[size];
+            this.passes = new boolean[size];
+            this.rowSuffix = new byte[size][];
+
+            double[] s = new double[size];
+            double pPrev = 1, T = pPrev;
+            s[0] = pPrev;
+
+            for (int i = v + 1; i <= w; i++) {
+                pPrev *= ((double) (n1 - i + 1) * (n2 - i + 1)) / i / (nSamples - n1 - n2 + i);
+                T += pPrev;
+                s[i - v] = T - 0.5 * pPrev;
+            }
+
+            for (int k = 0; k < size; k++) {
+                int n12 = v + k;
+                double p = s[k] / T,
+                        pValue = Math.min(p, 1 - p),
+                        lo = Math.max(-20, Math.min(20,
+                                Math.log10(((double) n12 * nSamples) / n1 / n2)));
+
+                logOdds[k] = lo;
+                logPValue[k] = Math.log10(pValue + 1e-100);
+                volcanoIndex[k] = volcano.getIndex(logPValue[k], lo);
+                passes[k] = pValue <= pValueThreshold & Math.abs(lo) >= logOddsThreshold;
+
+                if (passes[k]) {
+                    rowSuffix[k] = (n12 + "\t" +
+                            n1 + "\t" +
+                            n2 + "\t" +
+                            nSamples + "\t" +
+                            logOdds[k] + "\t" +
+                            logPValue[k]).getBytes(StandardCharsets.US_ASCII);
+                }
+            }
+        }
+
+        int size() {
+            return passes.length;
+        }
+    }
+}
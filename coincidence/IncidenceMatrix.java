@@ -0,0 +1,74 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Clonotype x sample incidence bits packed row-wise into long words, one row per clonotype.
+ */
+abstract class IncidenceMatrix implements Closeable {
+    static final int LOCK_STRIPES = 1024;
+
+    final int rows, samples, words;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    IncidenceMatrix(int rows, int samples) {
+        this.rows = rows;
+        this.samples = samples;
+        this.words = (samples + 63) >>> 6;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    abstract long getWord(long index);
+
+    abstract void setWord(long index, long value);
+
+    /**
+     * Copies rows [from, to) into dst starting at position 0.
+     */
+    void copyRows(int from, int to, long[] dst) {
+        long offset = (long) from * words;
+        for (int i = 0, n = (to - from) * words; i < n; i++) {
+            dst[i] = getWord(offset + i);
+        }
+    }
+
+    /**
+     * Sets the bit of a given sample, can be called concurrently: samples sharing a long word write different bits
+     * of it, so its read-modify-write is done under one of LOCK_STRIPES locks selected by word index.
+     */
+    void set(int row, int sample) {
+        long index = (long) row * words + (sample >>> 6);
+        synchronized (locks[(int) (index & (LOCK_STRIPES - 1))]) {
+            setWord(index, getWord(index) | (1L << sample));
+        }
+    }
+
+    boolean get(int row, int sample) {
+        return (getWord((long) row * words + (sample >>> 6)) & (1L << sample)) != 0;
+    }
+
+    int cardinality(int row) {
+        int count = 0;
+        for (long w = (long) row * words, end = w + words; w < end; w++) {
+            count += Long.bitCount(getWord(w));
+        }
+        return count;
+    }
+
+    /**
+     * Releases resources backing the matrix, nothing to release for a heap matrix.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+
+    int coincidence(int row1, int row2) {
+        long offset1 = (long) row1 * words, offset2 = (long) row2 * words;
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(getWord(offset1 + w) & getWord(offset2 + w));
+        }
+        return count;
+    }
+}
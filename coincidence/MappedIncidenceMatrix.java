@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Incidence matrix stored in a memory-mapped file, so its size is not limited by the heap and residency is left
+ * to the OS page cache. The file is mapped in chunks of whole rows of up to 1 GB each, as a single mapping
+ * is limited to 2 GB.
+ * <p>
+ * File layout: 64-byte header (magic, rows, samples) followed by rows * words little-endian longs.
+ */
+class MappedIncidenceMatrix extends IncidenceMatrix {
+    static final long MAGIC = 0x5043494E43494431L; // "PCINCID1"
+    static final int HEADER_BYTES = 64;
+    static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer[] mappings;
+    private final LongBuffer[] chunks;
+    private final long wordsPerChunk;
+
+    private MappedIncidenceMatrix(File file, int rows, int samples, boolean writable) throws IOException {
+        super(rows, samples);
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, writable ? "rw" : "r");
+
+        long totalWords = (long) rows * words;
+        this.wordsPerChunk = Math.max(1, MAX_CHUNK_BYTES / 8 / words) * words;
+
+        int chunkCount = (int) ((totalWords + wordsPerChunk - 1) / wordsPerChunk);
+        this.mappings = new MappedByteBuffer[chunkCount];
+        this.chunks = new LongBuffer[chunkCount];
+
+        FileChannel channel = randomAccessFile.getChannel();
+        for (int i = 0; i < chunkCount; i++) {
+            long chunkWords = Math.min(wordsPerChunk, totalWords - i * wordsPerChunk);
+            mappings[i] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + i * wordsPerChunk * 8, chunkWords * 8);
+            chunks[i] = mappings[i].order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+    }
+
+    /**
+     * Creates a new zero-filled matrix file, overwriting existing one.
+     */
+    static MappedIncidenceMatrix create(File file, int rows, int samples) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(rows).putInt(samples);
+            header.rewind();
+            raf.getChannel().write(header, 0);
+            raf.setLength(HEADER_BYTES + (long) rows * ((samples + 63) >>> 6) * 8);
+        }
+        return new MappedIncidenceMatrix(file, rows, samples, true);
+    }
+
+    /**
+     * Opens an existing matrix file read-only.
+     */
+    static MappedIncidenceMatrix open(File file) throws IOException {
+        int rows, samples;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            raf.getChannel().read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getLong() != MAGIC) {
+                throw new IOException(file + " is not an incidence matrix file.");
+            }
+            rows = header.getInt();
+            samples = header.getInt();
+            if (raf.length() != HEADER_BYTES + (long) rows * ((samples + 63) >>> 6) * 8) {
+                throw new IOException(file + " is truncated.");
+            }
+        }
+        return new MappedIncidenceMatrix(file, rows, samples, false);
+    }
+
+    @Override
+    long getWord(long index) {
+        int chunk = (int) (index / wordsPerChunk);
+        return chunks[chunk].get((int) (index - chunk * wordsPerChunk));
+    }
+
+    @Override
+    void setWord(long index, long value) {
+        int chunk = (int) (index / wordsPerChunk);
+        chunks[chunk].put((int) (index - chunk * wordsPerChunk), value);
+    }
+
+    @Override
+    void copyRows(int from, int to, long[] dst) {
+        long index = (long) from * words, end = (long) to * words;
+        int position = 0;
+        while (index < end) {
+            int chunk = (int) (index / wordsPerChunk),
+                    offset = (int) (index - chunk * wordsPerChunk),
+                    length = (int) Math.min(end - index, wordsPerChunk - offset);
+            LongBuffer view = chunks[chunk].duplicate();
+            view.position(offset);
+            view.get(dst, position, length);
+            position += length;
+            index += length;
+        }
+    }
+
+    /**
+     * Flushes changes to disk.
+     */
+    void force() {
+        for (MappedByteBuffer mapping : mappings) {
+            mapping.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate candidate pair screening with banded MinHash LSH over incidence bit vectors.
+ * <p>
+ * Each clonotype gets bands x rowsPerBand MinHash values computed over the set of samples it was found in.
+ * Clonotypes that agree on all MinHash values of at least one band become candidate pairs, so the probability
+ * of becoming a candidate grows steeply with the Jaccard index of incidence sets, i.e. pairs with high positive
+ * log odds are found while unrelated pairs are mostly skipped. Buckets larger than maxBucket (e.g. formed by
+ * clonotypes present in nearly all samples) are ignored.
+ */
+class MinHashScreen {
+    interface PairPredicate {
+        boolean test(int row1, int row2, int n12);
+    }
+
+    final IncidenceMatrix matrix;
+    final int bands, rowsPerBand, maxBucket;
+    final long seed;
+
+    MinHashScreen(IncidenceMatrix matrix, int bands, int rowsPerBand, int maxBucket, long seed) {
+        this.matrix = matrix;
+        this.bands = bands;
+        this.rowsPerBand = rowsPerBand;
+        this.maxBucket = maxBucket;
+        this.seed = seed;
+    }
+
+    static int getRow1(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    static int getRow2(long pair) {
+        return (int) pair;
+    }
+
+    static long getPair(int row1, int row2) {
+        return ((long) row1 << 32) | row2;
+    }
+
+    /**
+     * Returns sorted unique candidate pairs encoded with {@link #getPair(int, int)}, row1 > row2.
+     * Rows with zero incidence are never candidates.
+     */
+    long[] findCandidates(int[] incidenceCount) {
+        final int hashes = bands * rowsPerBand, samples = matrix.samples;
+
+        // Hash values of each sample index for each of MinHash functions
+
+        Random random = new Random(seed);
+        final int[] sampleHashes = new int[hashes * samples];
+        for (int h = 0; h < hashes; h++) {
+            long a = random.nextLong() | 1L, b = random.nextLong();
+            for (int sample = 0; sample < samples; sample++) {
+                sampleHashes[h * samples + sample] = (int) ((a * (sample + 1) + b) >>> 32);
+            }
+        }
+
+        // MinHash signatures, one array per row so that rows x hashes may exceed the int range
+
+        final int[][] signatures = new int[matrix.rows][];
+        IntStream.range(0, matrix.rows).parallel().forEach(row -> {
+            int[] signature = new int[hashes];
+            Arrays.fill(signature, Integer.MAX_VALUE);
+            for (int w = 0; w < matrix.words; w++) {
+                long word = matrix.getWord((long) row * matrix.words + w);
+                while (word != 0) {
+                    int sample = w * 64 + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    for (int h = 0; h < hashes; h++) {
+                        signature[h] = Math.min(signature[h], sampleHashes[h * samples + sample]);
+                    }
+                }
+            }
+            signatures[row] = signature;
+        });
+
+        // Bucket rows by band signature, collect pairs within buckets
+
+        long[] candidates = IntStream.range(0, bands).parallel()
+                .mapToObj(band -> findBandCandidates(band, signatures, incidenceCount))
+                .reduce(new long[0], (a, b) -> {
+                    long[] merged = Arrays.copyOf(a, a.length + b.length);
+                    System.arraycopy(b, 0, merged, a.length, b.length);
+                    return merged;
+                });
+
+        Arrays.parallelSort(candidates);
+
+        int unique = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            if (i == 0 || candidates[i] != candidates[i - 1]) {
+                candidates[unique++] = candidates[i];
+            }
+        }
+
+        return Arrays.copyOf(candidates, unique);
+    }
+
+    private long[] findBandCandidates(int band, int[][] signatures, int[] incidenceCount) {
+        long[] keys = new long[matrix.rows];
+        int keyCount = 0;
+        for (int row = 0; row < matrix.rows; row++) {
+            if (incidenceCount[row] > 0) {
+                long hash = 0;
+                for (int h = band * rowsPerBand; h < (band + 1) * rowsPerBand; h++) {
+                    hash = (hash + signatures[row][h]) * 0x9E3779B97F4A7C15L;
+                }
+                keys[keyCount++] = (hash & 0xFFFFFFFF00000000L) | row;
+            }
+        }
+        Arrays.sort(keys, 0, keyCount);
+
+        long[] pairs = new long[1024];
+        int pairCount = 0;
+
+        for (int from = 0, to; from < keyCount; from = to) {
+            to = from + 1;
+            while (to < keyCount && (keys[to] >>> 32) == (keys[from] >>> 32)) {
+                to++;
+            }
+            if (to - from > 1 && to - from <= maxBucket) {
+                for (int i = from + 1; i < to; i++) {
+                    for (int j = from; j < i; j++) {
+                        if (pairCount == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                        }
+                        // rows are sorted within bucket, so row(i) > row(j)
+                        pairs[pairCount++] = getPair((int) keys[i], (int) keys[j]);
+                    }
+                }
+            }
+        }
+
+        return Arrays.copyOf(pairs, pairCount);
+    }
+
+    /**
+     * Exhaustively checks all pairs among a random subset of rows and returns {pairs passing the predicate,
+     * of them found among candidates}.
+     */
+    long[] checkRecall(long[] candidates, int subsetSize, PairPredicate predicate) {
+        if (matrix.rows == 0 || subsetSize <= 0) {
+            return new long[2];
+        }
+
+        int[] subset = new Random(seed + 1).ints(0, matrix.rows).distinct()
+                .limit(Math.min(subsetSize, matrix.rows)).sorted().toArray();
+
+        long[] counts = IntStream.range(0, subset.length).parallel().mapToObj(i -> {
+            long[] partial = new long[2];
+            for (int j = 0; j < i; j++) {
+                int row1 = subset[i], row2 = subset[j];
+                if (predicate.test(row1, row2, matrix.coincidence(row1, row2))) {
+                    partial[0]++;
+                    if (Arrays.binarySearch(candidates, getPair(row1, row2)) >= 0) {
+                        partial[1]++;
+                    }
+                }
+            }
+            return partial;
+        }).reduce(new long[2], (a, b) -> new long[]{a[0] + b[0], a[1] + b[1]});
+
+        return counts;
+    }
+}
@@ -0,0 +1,139 @@
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Computes coincidence counts (n12) for all pairs of incidence matrix rows with Long.bitCount.
+ * <p>
+ * The pair triangle is split into square tiles of L2-sized row blocks (GEMM-style), which are processed
+ * in parallel. Rows of both blocks are first packed into per-thread scratch arrays, so the same code runs on heap
+ * and memory-mapped matrices. Within a tile, the second block is further walked in L1-sized strips so that
+ * it stays in cache while rows of the first block are streamed over it. Nothing is allocated per pair.
+ */
+class PairwiseKernel {
+    static final int L1_BYTES = 16 * 1024, L2_BYTES = 128 * 1024;
+
+    interface PairVisitor {
+        /**
+         * Called once for each unordered pair of rows, with row1 > row2.
+         */
+        void visit(int row1, int row2, int n12);
+    }
+
+    final IncidenceMatrix matrix;
+    final int blockRows, stripRows, blocks;
+    private final ThreadLocal<long[][]> scratch;
+
+    PairwiseKernel(IncidenceMatrix matrix) {
+        this.matrix = matrix;
+        int rowBytes = matrix.words * 8;
+        this.stripRows = Math.max(8, L1_BYTES / rowBytes);
+        this.blockRows = Math.max(stripRows, L2_BYTES / rowBytes / stripRows * stripRows);
+        this.blocks = (matrix.rows + blockRows - 1) / blockRows;
+        this.scratch = ThreadLocal.withInitial(() -> new long[][]{
+                new long[blockRows * matrix.words], new long[blockRows * matrix.words]
+        });
+    }
+
+    long getTotalPairs() {
+        return (long) matrix.rows * (matrix.rows - 1) / 2;
+    }
+
+    int getTileCount() {
+        return blocks * (blocks + 1) / 2;
+    }
+
+    /**
+     * Runs visitors over all pairs using all available cores. A visitor is requested once per tile, so it can
+     * hold thread-local state. Progress is reported once per tile with the number of pairs in the tile.
+     */
+    void forEachPair(Supplier<? extends PairVisitor> visitors, LongConsumer progress) {
+        IntStream.range(0, getTileCount()).parallel().forEach(tile ->
+                progress.accept(forEachPairInTile(tile, visitors.get())));
+    }
+
+    /**
+     * Runs the visitor over all pairs of a given tile in the calling thread, returns the number of pairs visited.
+     */
+    long forEachPairInTile(int tile, PairVisitor visitor) {
+        int block1 = triangleRow(tile), block2 = (int) (tile - triangleOffset(block1));
+
+        return forEachPairInBlocks(block1 * blockRows, Math.min(matrix.rows, (block1 + 1) * blockRows),
+                block2 * blockRows, Math.min(matrix.rows, (block2 + 1) * blockRows),
+                visitor);
+    }
+
+    /**
+     * Runs the visitor over all pairs with row1 in [from1, to1) and row2 in [from2, to2), row1 > row2,
+     * in the calling thread. Returns the number of pairs visited.
+     */
+    long forEachPairInRange(int from1, int to1, int from2, int to2, PairVisitor visitor) {
+        long pairs = 0;
+        for (int block1 = from1; block1 < to1; block1 += blockRows) {
+            int blockEnd1 = Math.min(to1, block1 + blockRows);
+            for (int block2 = from2; block2 < Math.min(to2, blockEnd1 - 1); block2 += blockRows) {
+                pairs += forEachPairInBlocks(block1, blockEnd1,
+                        block2, Math.min(to2, block2 + blockRows), visitor);
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Row of a given element in a lower triangle (diagonal included) enumerated row by row.
+     */
+    static int triangleRow(long index) {
+        int row = (int) ((Math.sqrt(8.0 * index + 1) - 1) / 2);
+        // guard against rounding errors for large indices
+        while (triangleOffset(row) > index) {
+            row--;
+        }
+        while (triangleOffset(row + 1) <= index) {
+            row++;
+        }
+        return row;
+    }
+
+    /**
+     * Index of the first element of a given row in a lower triangle (diagonal included) enumerated row by row.
+     */
+    static long triangleOffset(int row) {
+        return (long) row * (row + 1) / 2;
+    }
+
+    private long forEachPairInBlocks(int from1, int to1, int from2, int to2, PairVisitor visitor) {
+        final int words = matrix.words;
+        final long[][] buffers = scratch.get();
+        final long[] bits1 = buffers[0], bits2 = from1 == from2 && to1 == to2 ? bits1 : buffers[1];
+
+        matrix.copyRows(from1, to1, bits1);
+        if (bits2 != bits1) {
+            matrix.copyRows(from2, to2, bits2);
+        }
+
+        long pairs = 0;
+
+        for (int strip = from2; strip < to2; strip += stripRows) {
+            int stripEnd = Math.min(to2, strip + stripRows);
+
+            for (int row1 = Math.max(from1, strip + 1); row1 < to1; row1++) {
+                int offset1 = (row1 - from1) * words,
+                        end2 = Math.min(stripEnd, row1); // only row2 < row1 in diagonal tiles
+
+                for (int row2 = strip; row2 < end2; row2++) {
+                    int offset2 = (row2 - from2) * words, n12 = 0;
+
+                    for (int w = 0; w < words; w++) {
+                        n12 += Long.bitCount(bits1[offset1 + w] & bits2[offset2 + w]);
+                    }
+
+                    visitor.visit(row1, row2, n12);
+                }
+
+                pairs += end2 - strip;
+            }
+        }
+
+        return pairs;
+    }
+}
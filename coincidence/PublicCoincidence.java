@@ -1,6 +1,10 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 public class PublicCoincidence {
     private static final int CDR3AA_COL = 3, V_COL = 4, J_COL = 6,
@@ -22,229 +26,425 @@ public class PublicCoincidence {
 
         int nSamples = sampleFileNames.length;
 
-        // Read the list of public clonotypes
+        Map<String, String> options = parseOptions(args, 4);
 
-        Map<String, ClonotypeInfo> incidenceMap = new HashMap<>();
-        Map<Integer, Long> incidenceCounts = new HashMap<>();
+        boolean keepShards = Boolean.parseBoolean(options.getOrDefault("keep-shards", "false"));
 
-        BufferedReader br = new BufferedReader(new FileReader(inputPublicListFileName));
-        String line;
+        String checkpointDir = options.get("checkpoint-dir"),
+                tileSelection = options.getOrDefault("tiles", "all");
+        int tileRows = Integer.parseInt(options.getOrDefault("tile-rows", "16384"));
 
-        br.readLine(); // skip header
+        String lshSpec = options.get("lsh");
+        int lshMaxBucket = Integer.parseInt(options.getOrDefault("lsh-max-bucket", "10000")),
+                lshRecallRows = Integer.parseInt(options.getOrDefault("lsh-recall-rows", "2000"));
+        long lshSeed = Long.parseLong(options.getOrDefault("lsh-seed", "51103"));
 
-        System.out.println("[" + (new Date()).toString() + "] Reading in pooled clonotypes");
-
-        while ((line = br.readLine()) != null) {
-            String[] splitLine = line.split("\t");
-
-            int incidence = Integer.parseInt(splitLine[INCIDENCE_COL]);
-
-            Long count = incidenceCounts.get(incidence);
-            if (count == null) {
-              count = 0L;
-            }
-            incidenceCounts.put(incidence, count + 1L);
-
-            // Only add clonotypes with incidence/samples > threshold, e.g. 5%-10% of population
-            if (incidence > incidenceRatioThreshold * nSamples) {
-                incidenceMap.put(splitLine[CDR3AA_COL],
-                        new ClonotypeInfo(splitLine[V_COL], splitLine[J_COL], new BitSet(nSamples)));
-            }
+        if (lshSpec != null && checkpointDir != null) {
+            throw new IllegalArgumentException("LSH mode does not support tile checkpoints.");
         }
 
-        // Write incidence histogram
-
-        try (PrintWriter pw = new PrintWriter(outputFilePrefix + ".incidence.hist.txt")) {
-            pw.println("incidence\tcount");
-            for (Map.Entry<Integer, Long> entry : incidenceCounts.entrySet()) {
-              pw.println(entry.getKey() + "\t" + entry.getValue());
+        long pTableCells = Long.parseLong(options.getOrDefault("p-table-cells", "16777216"));
+
+        double[] logPRange = parseRange(options.getOrDefault("log-p-range", MIN_LOG_P + ":" + MAX_LOG_P)),
+                logOddsRange = parseRange(options.getOrDefault("log-odds-range", MIN_LOG_ODDS + ":" + MAX_LOG_ODDS));
+
+        final Histogram2D volcano = new Histogram2D(
+                Integer.parseInt(options.getOrDefault("log-p-bins", Integer.toString(LOG_P_BINS))),
+                logPRange[0], logPRange[1],
+                Integer.parseInt(options.getOrDefault("log-odds-bins", Integer.toString(LOG_ODDS_BINS))),
+                logOddsRange[0], logOddsRange[1]);
+
+        // Clonotype table, incidence histogram and incidence matrix depend only on the inputs and incidence
+        // ratio threshold, so they can be stored and reused by analyses with other thresholds
+
+        String matrixFileName = options.get("matrix"),
+                inputSignature = "pool=" + describeFile(inputPublicListFileName) + "\t" +
+                        "samples=" + describeFiles(sampleFileNames),
+                matrixSignature = inputSignature + "\t" +
+                        "incidence.ratio=" + incidenceRatioThreshold;
+        File matrixIndexFile = matrixFileName == null ? null : new File(matrixFileName + ".clonotypes");
+
+        final Map<Integer, Long> incidenceCounts = new TreeMap<>();
+        final ClonotypeTable clonotypes;
+        final IncidenceMatrix incidenceMatrix;
+
+        if (matrixIndexFile != null && matrixIndexFile.exists()) {
+            System.out.println("[" + (new Date()).toString() + "] Loading stored incidence matrix " +
+                    matrixFileName);
+
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(matrixIndexFile)))) {
+                String signature = is.readUTF();
+                if (!signature.equals(matrixSignature)) {
+                    throw new IllegalStateException("Incidence matrix " + matrixFileName +
+                            " was built from different inputs:\n" + signature + "\nvs current\n" + matrixSignature);
+                }
+                for (int i = is.readInt(); i > 0; i--) {
+                    incidenceCounts.put(is.readInt(), is.readLong());
+                }
+                clonotypes = ClonotypeTable.read(is);
             }
-        }
 
-        System.out.println("[" + (new Date()).toString() + "] Loaded " + incidenceMap.size() +
-                " public clonotypes");
+            incidenceMatrix = MappedIncidenceMatrix.open(new File(matrixFileName));
+
+            System.out.println("[" + (new Date()).toString() + "] Loaded " + clonotypes.size() +
+                    " public clonotypes");
+        } else {
+            // Read the list of public clonotypes
 
-        // Fill in incidence bit array
+            ClonotypeTable publicClonotypes = new ClonotypeTable();
 
-        for (int i = 0; i < sampleFileNames.length; i++) {
-            br = new BufferedReader(new FileReader(sampleFileNames[i]));
+            BufferedReader br = new BufferedReader(new FileReader(inputPublicListFileName));
+            String line;
 
             br.readLine(); // skip header
 
+            System.out.println("[" + (new Date()).toString() + "] Reading in pooled clonotypes");
+
             while ((line = br.readLine()) != null) {
                 String[] splitLine = line.split("\t");
-                ClonotypeInfo clonotypeInfo = incidenceMap.get(splitLine[CDR3AA_COL]);
-                if (clonotypeInfo != null)
-                    clonotypeInfo.setIncidence(i);
+
+                int incidence = Integer.parseInt(splitLine[INCIDENCE_COL]);
+
+                Long count = incidenceCounts.get(incidence);
+                if (count == null) {
+                  count = 0L;
+                }
+                incidenceCounts.put(incidence, count + 1L);
+
+                // Only add clonotypes with incidence/samples > threshold, e.g. 5%-10% of population
+                if (incidence > incidenceRatioThreshold * nSamples) {
+                    publicClonotypes.put(splitLine[CDR3AA_COL], splitLine[V_COL], splitLine[J_COL]);
+                }
             }
 
-            if (i % 10 == 0) {
-                System.out.println("[" + (new Date()).toString() + "] Scanned " + i + " of " +
-                        sampleFileNames.length +
-                        " samples for public incidence.");
+            System.out.println("[" + (new Date()).toString() + "] Loaded " + publicClonotypes.size() +
+                    " public clonotypes");
+
+            // Re-assign clonotype IDs in CDR3 order, so that row1 > row2 means cdr3.1 > cdr3.2
+
+            clonotypes = publicClonotypes.sorted();
+            publicClonotypes = null;
+
+            incidenceMatrix = matrixFileName == null ?
+                    new HeapIncidenceMatrix(clonotypes.size(), nSamples) :
+                    MappedIncidenceMatrix.create(new File(matrixFileName), clonotypes.size(), nSamples);
+
+            // Fill in incidence bit array
+
+            new SampleScanner(clonotypes, CDR3AA_COL).fill(incidenceMatrix, sampleFileNames);
+
+            if (matrixFileName != null) {
+                ((MappedIncidenceMatrix) incidenceMatrix).force();
+
+                // clonotype file is written last and marks the matrix as complete
+                File tmp = new File(matrixIndexFile.getPath() + ".tmp");
+                try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tmp)))) {
+                    os.writeUTF(matrixSignature);
+                    os.writeInt(incidenceCounts.size());
+                    for (Map.Entry<Integer, Long> entry : incidenceCounts.entrySet()) {
+                        os.writeInt(entry.getKey());
+                        os.writeLong(entry.getValue());
+                    }
+                    clonotypes.write(os);
+                }
+                if (!tmp.renameTo(matrixIndexFile)) {
+                    throw new IOException("Failed to move " + tmp + " to " + matrixIndexFile);
+                }
+
+                System.out.println("[" + (new Date()).toString() + "] Stored incidence matrix in " +
+                        matrixFileName);
             }
         }
 
-        // Run pairwise comparisons
+        try {
+            // Write incidence histogram
 
-        final Map<String, AtomicLong> volcanoBg = generateVolcanoBg();
+            try (PrintWriter pw = new PrintWriter(outputFilePrefix + ".incidence.hist.txt")) {
+                pw.println("incidence\tcount");
+                for (Map.Entry<Integer, Long> entry : incidenceCounts.entrySet()) {
+                  pw.println(entry.getKey() + "\t" + entry.getValue());
+                }
+            }
 
-        final AtomicLong pairsCounter = new AtomicLong(), goodPairsCounter = new AtomicLong();
+            final int[] incidenceCount = new int[clonotypes.size()];
+            for (int row = 0; row < clonotypes.size(); row++) {
+                incidenceCount[row] = incidenceMatrix.cardinality(row);
+            }
 
-        try (PrintWriter pw = new PrintWriter(outputFilePrefix + ".txt")) {
-            pw.println("cdr3aa.1\tv.1\tj.1\tcdr3aa.2\tv.2\tj.2\tn12\tn1\tn2\tn.total\tlog.odds\tlog.p.value");
-            incidenceMap.entrySet().parallelStream().forEach(entry1 ->
-                    incidenceMap.forEach((key2, value2) -> {
-                        String key1 = entry1.getKey();
-                        ClonotypeInfo value1 = entry1.getValue();
-                        if (key1.compareTo(key2) > 0) { // ignore duplicates
-                            int n1 = value1.getIncidenceCount(),
-                                    n2 = value2.getIncidenceCount();
+            // Run pairwise comparisons
 
-                            if (n1 > 0 && n2 > 0) {
-                                int n12 = value1.getCoincidenceCount(value2);
+            final HypergeometricTables pTables = new HypergeometricTables(nSamples,
+                    pValueThreshold, logOddsThreshold, pTableCells, volcano);
 
-                                double logOdds = computeLogOdds(n12, n1, n2, nSamples),
-                                        pValue = computeP(n12, n1, n2, nSamples),
-                                        logPValue = Math.log10(pValue + 1e-100); // can actually hash P-values to speed up
+            final PairwiseKernel kernel = new PairwiseKernel(incidenceMatrix);
+            final long totalPairs = kernel.getTotalPairs();
 
-                                AtomicLong bgCounter = volcanoBg.get(getLogPCoord(logPValue) + "\t" +
-                                        getLogOddsCoord(logOdds));
+            final AtomicLong pairsCounter = new AtomicLong(), goodPairsCounter = new AtomicLong();
 
-                                if (bgCounter != null) {
-                                    bgCounter.incrementAndGet();
-                                }
+            final String header = "cdr3aa.1\tv.1\tj.1\tcdr3aa.2\tv.2\tj.2\tn12\tn1\tn2\tn.total\tlog.odds\tlog.p.value";
+
+            if (lshSpec != null) {
+                // Approximate mode: only candidate pairs found by MinHash LSH are checked exactly
 
-                                if (pValue <= pValueThreshold & Math.abs(logOdds) >= logOddsThreshold) {
-                                    pw.println(key1 + "\t" + value1.v + "\t" + value1.j + "\t" +
-                                            key2 + "\t" + value2.v + "\t" + value2.j + "\t" +
-                                            n12 + "\t" +
-                                            n1 + "\t" +
-                                            n2 + "\t" +
-                                            nSamples + "\t" +
-                                            logOdds + "\t" +
-                                            logPValue
-                                    );
-                                    goodPairsCounter.incrementAndGet();
+                String[] lshParams = lshSpec.split(":");
+                final MinHashScreen screen = new MinHashScreen(incidenceMatrix,
+                        Integer.parseInt(lshParams[0]), Integer.parseInt(lshParams[1]), lshMaxBucket, lshSeed);
+
+                final long[] candidates = screen.findCandidates(incidenceCount);
+
+                System.out.println("[" + (new Date()).toString() + "] Found " + candidates.length +
+                        " LSH candidate pairs out of " + totalPairs + ", volcano plot will only include candidates.");
+
+                final ShardedPairWriter pairWriter = new ShardedPairWriter(outputFilePrefix + ".txt", header);
+
+                try (ShardedPairWriter pw = pairWriter) {
+                    IntStream.range(0, (candidates.length + CANDIDATE_BATCH - 1) / CANDIDATE_BATCH).parallel()
+                            .forEach(batch -> {
+                                PairwiseKernel.PairVisitor visitor = createPairVisitor(incidenceCount, pTables,
+                                        clonotypes, volcano.getLocal(), pw.getLocal(), goodPairsCounter);
+                                int from = batch * CANDIDATE_BATCH,
+                                        to = Math.min(candidates.length, from + CANDIDATE_BATCH);
+                                for (int i = from; i < to; i++) {
+                                    int row1 = MinHashScreen.getRow1(candidates[i]),
+                                            row2 = MinHashScreen.getRow2(candidates[i]);
+                                    visitor.visit(row1, row2, incidenceMatrix.coincidence(row1, row2));
                                 }
-                            }
-
-                            if (pairsCounter.incrementAndGet() % 50_000_000 == 0) {
-                                System.out.println("[" + (new Date()).toString() + "] Checked ~" + pairsCounter.get() +
-                                        " pairs out of " + (long) incidenceMap.size() * ((incidenceMap.size() - 1) / 2L) +
-                                        ", " + goodPairsCounter.get() +
-                                        " pairs passing minimal filtering criteria.");
-                            }
+                                reportProgress(pairsCounter, goodPairsCounter, to - from, candidates.length);
+                            });
+                }
+
+                finishShards(pairWriter, keepShards);
+
+                if (lshRecallRows > 0) {
+                    long[] recall = screen.checkRecall(candidates, lshRecallRows, (row1, row2, n12) -> {
+                        int n1 = incidenceCount[row1], n2 = incidenceCount[row2];
+                        if (n1 > 0 && n2 > 0) {
+                            HypergeometricTables.Table pTable = pTables.get(n1, n2);
+                            int k = n12 - pTable.n12Min;
+                            return pTable.passes[k] && pTable.logOdds[k] > 0;
                         }
-                    })
-            );
-        }
+                        return false;
+                    });
 
-        // Write volcano BG
+                    System.out.println("[" + (new Date()).toString() + "] LSH recall on " + lshRecallRows +
+                            " random clonotypes: " + recall[1] + " of " + recall[0] +
+                            " pairs with significant positive log odds were candidates" +
+                            (recall[0] > 0 ? String.format(" (%.2f%%).", 100.0 * recall[1] / recall[0]) : "."));
+                }
+            } else if (checkpointDir == null) {
+                final ShardedPairWriter pairWriter = new ShardedPairWriter(outputFilePrefix + ".txt", header);
 
-        try (PrintWriter pw = new PrintWriter(outputFilePrefix + ".volcano.txt")) {
-            pw.println("log.p\tlog.odds\tcount");
-            for (int logPCoord = 0; logPCoord <= LOG_P_BINS; logPCoord++) {
-                for (int logOddsCoord = 0; logOddsCoord <= LOG_ODDS_BINS; logOddsCoord++) {
-                    pw.println(getLogPValue(logPCoord) + "\t" +
-                            getLogOddsValue(logOddsCoord) + "\t" +
-                            volcanoBg.get(logPCoord + "\t" + logOddsCoord).get());
+                try (ShardedPairWriter pw = pairWriter) {
+                    kernel.forEachPair(() -> createPairVisitor(incidenceCount, pTables, clonotypes,
+                            volcano.getLocal(), pw.getLocal(), goodPairsCounter),
+                            tilePairs -> reportProgress(pairsCounter, goodPairsCounter, tilePairs, totalPairs));
                 }
-            }
-        }
 
-        System.out.println("[" + (new Date()).toString() + "] DONE. Checked " + pairsCounter.get() +
-                " pairs out of " + incidenceMap.size() * (incidenceMap.size() - 1) / 2 +
-                ", " + goodPairsCounter.get() +
-                " pairs passing minimal filtering criteria.");
-    }
+                finishShards(pairWriter, keepShards);
+            } else {
+                // Process selected tiles that are not finished yet, checkpointing each one
 
-    private static double computeLogOdds(int n12, int n1, int n2, int nSamples) {
-        return Math.max(-20, Math.min(20,
-                Math.log10(((double) n12 * nSamples) / n1 / n2)));
-    }
+                final TileCheckpoint checkpoint = new TileCheckpoint(new File(checkpointDir), clonotypes.size(), tileRows,
+                        inputSignature + "\t" +
+                                "thresholds=" + args[0] + "\t" +
+                                "volcano=" + volcano.xBins + ":" + volcano.xMin + ":" + volcano.xMax + ":" +
+                                volcano.yBins + ":" + volcano.yMin + ":" + volcano.yMax);
 
-    private static double computeP(int n12, int n1, int n2, int nSamples) {
-        double p = pHyp(n12, n1, n2, nSamples);
+                int[] pendingTiles = checkpoint.getPendingTiles(TileCheckpoint.parseSelection(tileSelection));
 
-        return Math.min(p, 1 - p);
-    }
+                System.out.println("[" + (new Date()).toString() + "] Processing " + pendingTiles.length + " of " +
+                        checkpoint.getTileCount() + " tiles, checkpoints are stored in " + checkpointDir);
 
-    private static double pHyp(int n12, int n1, int n2, int nSamples) {
-        // http://journals.sagepub.com.sci-hub.cc/doi/pdf/10.2466/pms.1998.87.1.51
+                IntStream.of(pendingTiles).parallel().forEach(tile -> {
+                    int[] ranges = checkpoint.getRanges(tile);
+                    long[] tileVolcanoBg = new long[volcano.getSize()];
 
-        int v = Math.max(0, n1 + n2 - nSamples),
-                w = Math.min(n1, n2);
+                    try {
+                        File rowsFile = checkpoint.getTempRowsFile(tile);
+                        long tilePairs;
 
-        assert n12 >= v && n12 <= w;
+                        try (RowWriter writer = new RowWriter(rowsFile, null)) {
+                            tilePairs = kernel.forEachPairInRange(ranges[0], ranges[1], ranges[2], ranges[3],
+                                    createPairVisitor(incidenceCount, pTables, clonotypes,
+                                            tileVolcanoBg, writer, goodPairsCounter));
+                        }
 
-        double pPrev = 1, T = pPrev, S = pPrev;
+                        checkpoint.complete(tile, rowsFile, tileVolcanoBg);
+                        reportProgress(pairsCounter, goodPairsCounter, tilePairs, totalPairs);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
 
-        for (int i = v + 1; i <= w; i++) {
-            pPrev *= ((double) (n1 - i + 1) * (n2 - i + 1)) / i / (nSamples - n1 - n2 + i);
-            T += pPrev;
+                int remaining = checkpoint.getPendingTiles(tile -> true).length;
 
-            if (i == n12) {
-                S = T - 0.5 * pPrev;
-            }
-        }
+                if (remaining > 0) {
+                    System.out.println("[" + (new Date()).toString() + "] " + remaining + " of " +
+                            checkpoint.getTileCount() + " tiles are not finished yet, outputs will be written " +
+                            "once all tiles are done.");
+                    return;
+                }
 
-        return S / T;
-    }
+                // Merge all tiles into final outputs, only once if several processes finish at the same time
+
+                if (!checkpoint.claimMerge()) {
+                    System.out.println("[" + (new Date()).toString() + "] All tiles are finished, outputs are " +
+                            "merged by another process. Remove " + checkpoint.getMergeLockFile() +
+                            " to merge them again.");
+                    return;
+                }
 
-    private static Map<String, AtomicLong> generateVolcanoBg() {
-        Map<String, AtomicLong> volcanoBg = new HashMap<>();
-        for (int logPCoord = 0; logPCoord <= LOG_P_BINS; logPCoord++) {
-            for (int logOddsCoord = 0; logOddsCoord <= LOG_ODDS_BINS; logOddsCoord++) {
-                volcanoBg.put(logPCoord + "\t" + logOddsCoord,
-                        new AtomicLong());
+                System.out.println("[" + (new Date()).toString() + "] All tiles are finished, merging.");
+
+                ShardedPairWriter.merge(outputFilePrefix + ".txt",
+                        (header + "\n").getBytes(StandardCharsets.US_ASCII),
+                        checkpoint.getRowsFiles(), 0, false);
+
+                for (int tile = 0; tile < checkpoint.getTileCount(); tile++) {
+                    volcano.add(checkpoint.readVolcano(tile));
+                }
             }
-        }
-        return volcanoBg;
-    }
 
-    static final int LOG_ODDS_BINS = 100, LOG_P_BINS = 100;
-    static final double MIN_LOG_ODDS = -1, MAX_LOG_ODDS = 1,
-            MIN_LOG_P = -10, MAX_LOG_P = 0;
+            // Write volcano BG, out-of-range pairs are written separately with -Inf/Inf coordinates
+
+            long[] volcanoBg = volcano.merge();
+
+            try (PrintWriter pw = new PrintWriter(outputFilePrefix + ".volcano.txt");
+                 PrintWriter pwOutliers = new PrintWriter(outputFilePrefix + ".volcano.outliers.txt")) {
+                pw.println("log.p\tlog.odds\tcount");
+                pwOutliers.println("log.p\tlog.odds\tcount");
+                for (int logPCoord = -1; logPCoord <= volcano.xBins + 1; logPCoord++) {
+                    for (int logOddsCoord = -1; logOddsCoord <= volcano.yBins + 1; logOddsCoord++) {
+                        boolean outlier = logPCoord < 0 || logPCoord > volcano.xBins ||
+                                logOddsCoord < 0 || logOddsCoord > volcano.yBins;
+                        (outlier ? pwOutliers : pw).println(
+                                getCoordLabel(logPCoord, volcano.xBins, volcano.getXValue(logPCoord)) + "\t" +
+                                        getCoordLabel(logOddsCoord, volcano.yBins, volcano.getYValue(logOddsCoord)) + "\t" +
+                                        volcanoBg[volcano.getIndex(logPCoord, logOddsCoord)]);
+                    }
+                }
+            }
 
-    static int getLogOddsCoord(double logOdds) {
-        return (int) ((logOdds - MIN_LOG_ODDS) * LOG_ODDS_BINS / (MAX_LOG_ODDS - MIN_LOG_ODDS));
+            System.out.println("[" + (new Date()).toString() + "] Built " + pTables.getBuiltCount() +
+                    " P-value tables, evicted " + pTables.getEvictedCount() + ".");
+
+            System.out.println("[" + (new Date()).toString() + "] DONE. Checked " + pairsCounter.get() +
+                    " pairs out of " + totalPairs +
+                    ", " + goodPairsCounter.get() +
+                    " pairs passing minimal filtering criteria.");
+        } finally {
+            incidenceMatrix.close();
+        }
     }
 
-    static double getLogOddsValue(int coord) {
-        return MIN_LOG_ODDS + coord / (double) LOG_ODDS_BINS * (MAX_LOG_ODDS - MIN_LOG_ODDS);
+    private static PairwiseKernel.PairVisitor createPairVisitor(final int[] incidenceCount,
+                                                                final HypergeometricTables pTables,
+                                                                final ClonotypeTable clonotypes,
+                                                                final long[] volcanoBg,
+                                                                final RowWriter writer,
+                                                                final AtomicLong goodPairsCounter) {
+        return (row1, row2, n12) -> {
+            int n1 = incidenceCount[row1],
+                    n2 = incidenceCount[row2];
+
+            if (n1 > 0 && n2 > 0) {
+                HypergeometricTables.Table pTable = pTables.get(n1, n2);
+                int k = n12 - pTable.n12Min;
+
+                volcanoBg[pTable.volcanoIndex[k]]++;
+
+                if (pTable.passes[k]) {
+                    clonotypes.writeLabel(row1, writer);
+                    writer.write('\t');
+                    clonotypes.writeLabel(row2, writer);
+                    writer.write('\t');
+                    writer.write(pTable.rowSuffix[k]);
+                    writer.write('\n');
+                    goodPairsCounter.incrementAndGet();
+                }
+            }
+        };
     }
 
-    static int getLogPCoord(double logP) {
-        return (int) ((logP - MIN_LOG_P) * LOG_P_BINS / (MAX_LOG_P - MIN_LOG_P));
+    private static void finishShards(ShardedPairWriter pairWriter, boolean keepShards) throws IOException {
+        if (keepShards) {
+            System.out.println("[" + (new Date()).toString() + "] Significant pairs were written to " +
+                    pairWriter.getShardFiles().size() + " shards " + pairWriter.outputFileName + ".shard*");
+        } else {
+            pairWriter.merge();
+        }
     }
 
-    static double getLogPValue(int coord) {
-        return MIN_LOG_P + coord / (double) LOG_P_BINS * (MAX_LOG_P - MIN_LOG_P);
+    private static void reportProgress(AtomicLong pairsCounter, AtomicLong goodPairsCounter,
+                                       long pairs, long totalPairs) {
+        long checked = pairsCounter.addAndGet(pairs);
+        if ((checked - pairs) / 50_000_000 != checked / 50_000_000) {
+            System.out.println("[" + (new Date()).toString() + "] Checked ~" + checked +
+                    " pairs out of " + totalPairs +
+                    ", " + goodPairsCounter.get() +
+                    " pairs passing minimal filtering criteria.");
+        }
     }
 
-    private static class ClonotypeInfo {
-        final String v, j;
-        final BitSet incidence;
+    /**
+     * Identifies an input file by absolute path, size and modification time, so that a file regenerated under
+     * the same path is not mistaken for the old one.
+     */
+    private static String describeFile(String fileName) {
+        File file = new File(fileName);
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
 
-        ClonotypeInfo(String v, String j, BitSet incidence) {
-            this.v = v;
-            this.j = j;
-            this.incidence = incidence;
+    /**
+     * Number of input files and SHA-1 digest of their descriptions, see {@link #describeFile(String)}.
+     */
+    private static String describeFiles(String[] fileNames) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-
-        void setIncidence(int sampleIndex) {
-            incidence.set(sampleIndex);
+        for (String fileName : fileNames) {
+            digest.update((describeFile(fileName) + "\n").getBytes(StandardCharsets.UTF_8));
         }
-
-        int getIncidenceCount() {
-            return incidence.cardinality();
+        StringBuilder hex = new StringBuilder(fileNames.length + ":");
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
         }
+        return hex.toString();
+    }
 
-        int getCoincidenceCount(ClonotypeInfo other) {
-            BitSet tmp = (BitSet) incidence.clone();
-            tmp.and(other.incidence);
-            return tmp.cardinality();
+    private static Map<String, String> parseOptions(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Bad option '" + args[i] + "', should be --name=value.");
+            }
+            int eq = args[i].indexOf('=');
+            if (eq < 0) {
+                options.put(args[i].substring(2), "true");
+            } else {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            }
         }
+        return options;
+    }
+
+    private static double[] parseRange(String range) {
+        String[] bounds = range.split(":");
+        return new double[]{Double.parseDouble(bounds[0]), Double.parseDouble(bounds[1])};
+    }
+
+    private static String getCoordLabel(int coord, int bins, double value) {
+        return coord < 0 ? "-Inf" : (coord > bins ? "Inf" : Double.toString(value));
     }
+
+    static final int CANDIDATE_BATCH = 65536;
+
+    static final int LOG_ODDS_BINS = 100, LOG_P_BINS = 100;
+    static final double MIN_LOG_ODDS = -1, MAX_LOG_ODDS = 1,
+            MIN_LOG_P = -10, MAX_LOG_P = 0;
 }
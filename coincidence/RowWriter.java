@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Single-threaded buffered writer of rows assembled from pre-encoded byte fields.
+ */
+class RowWriter implements AutoCloseable {
+    static final int BUFFER_SIZE = 1 << 20;
+
+    final File file;
+    private final FileOutputStream os;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    RowWriter(File file, byte[] header) {
+        this.file = file;
+        try {
+            this.os = new FileOutputStream(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (header != null) {
+            write(header);
+        }
+    }
+
+    void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    void write(char c) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) c;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > buffer.length) {
+            flush();
+            if (length > buffer.length) {
+                buffer = new byte[length];
+            }
+        }
+    }
+
+    private void flush() {
+        try {
+            os.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        os.close();
+    }
+}
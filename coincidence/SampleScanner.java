@@ -0,0 +1,155 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Fills the incidence matrix from VDJtools sample files.
+ * <p>
+ * Samples are scanned concurrently with large NIO buffer reads, only the CDR3 column is located in each line
+ * and looked up in the clonotype table as raw bytes. Each worker sets the bits of its sample as soon as it is
+ * scanned, concurrently with other workers, so matched rows are only held for samples being scanned.
+ * Samples converted to columnar format are detected automatically, only their CDR3aa dictionary is scanned.
+ */
+class SampleScanner {
+    static final int BUFFER_SIZE = 4 << 20;
+
+    final ClonotypeTable clonotypes;
+    final int column;
+
+    SampleScanner(ClonotypeTable clonotypes, int column) {
+        this.clonotypes = clonotypes;
+        this.column = column;
+    }
+
+    void fill(IncidenceMatrix matrix, String[] sampleFileNames) {
+        final AtomicInteger scanned = new AtomicInteger();
+
+        IntStream.range(0, sampleFileNames.length).parallel().forEach(i -> {
+            int[] rows;
+            try {
+                rows = scan(sampleFileNames[i]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (int row : rows) {
+                matrix.set(row, i);
+            }
+
+            int count = scanned.incrementAndGet();
+            if (count % 10 == 0) {
+                System.out.println("[" + (new Date()).toString() + "] Scanned " + count + " of " +
+                        sampleFileNames.length +
+                        " samples for public incidence.");
+            }
+        });
+    }
+
+    /**
+     * Returns clonotype IDs of all CDR3s found in a given sample file.
+     */
+    int[] scan(String fileName) throws IOException {
+        if (ColumnarSample.isColumnar(new File(fileName))) {
+            return scanColumnar(ColumnarSample.open(new File(fileName)));
+        }
+
+        int[] rows = new int[1024];
+        int rowCount = 0;
+
+        try (FileChannel channel = new FileInputStream(fileName).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] bytes = buffer.array();
+            boolean header = true, eof = false;
+
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                int limit = buffer.position(), lineStart = 0;
+
+                while (true) {
+                    int lineEnd = lineStart;
+                    while (lineEnd < limit && bytes[lineEnd] != '\n') {
+                        lineEnd++;
+                    }
+                    if (lineEnd == limit && !(eof && lineEnd > lineStart)) {
+                        break; // incomplete line, wait for more data
+                    }
+
+                    if (header) {
+                        header = false;
+                    } else {
+                        int row = findInLine(bytes, lineStart, lineEnd);
+                        if (row >= 0) {
+                            if (rowCount == rows.length) {
+                                rows = Arrays.copyOf(rows, rowCount * 2);
+                            }
+                            rows[rowCount++] = row;
+                        }
+                    }
+
+                    lineStart = lineEnd + 1;
+                    if (lineStart >= limit) {
+                        break;
+                    }
+                }
+
+                if (lineStart == 0 && limit == bytes.length) {
+                    throw new IOException("Line longer than " + bytes.length + " bytes in " + fileName);
+                }
+
+                // move the incomplete line to the beginning of the buffer
+                lineStart = Math.min(lineStart, limit);
+                System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+                buffer.position(limit - lineStart);
+            }
+        }
+
+        return Arrays.copyOf(rows, rowCount);
+    }
+
+    private int[] scanColumnar(ColumnarSample sample) {
+        ColumnarSample.Dictionary cdr3aa = sample.cdr3aa;
+        int[] rows = new int[cdr3aa.size];
+        int rowCount = 0;
+
+        byte[] bytes = new byte[256];
+        for (int id = 0; id < cdr3aa.size; id++) {
+            int length = cdr3aa.getLength(id);
+            if (length > bytes.length) {
+                bytes = new byte[length];
+            }
+            cdr3aa.getBytes(id, bytes);
+            int row = clonotypes.find(bytes, 0, length);
+            if (row >= 0) {
+                rows[rowCount++] = row;
+            }
+        }
+
+        return Arrays.copyOf(rows, rowCount);
+    }
+
+    private int findInLine(byte[] bytes, int lineStart, int lineEnd) {
+        int fieldStart = lineStart;
+        for (int tabs = 0; tabs < column; fieldStart++) {
+            if (fieldStart >= lineEnd) {
+                return -1; // too few columns
+            }
+            if (bytes[fieldStart] == '\t') {
+                tabs++;
+            }
+        }
+
+        int fieldEnd = fieldStart;
+        while (fieldEnd < lineEnd && bytes[fieldEnd] != '\t' && bytes[fieldEnd] != '\r') {
+            fieldEnd++;
+        }
+
+        return clonotypes.find(bytes, fieldStart, fieldEnd);
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes significant pairs without any locking: each thread gets its own shard file with a private byte buffer,
+ * rows are assembled in the buffer from pre-encoded fields. Shards start with the same header line and can
+ * be merged into a single output file once all threads are done.
+ */
+class ShardedPairWriter implements AutoCloseable {
+    final String outputFileName;
+    final byte[] header;
+
+    private final List<RowWriter> shards = new ArrayList<>();
+    private final ThreadLocal<RowWriter> local = ThreadLocal.withInitial(this::newShard);
+
+    ShardedPairWriter(String outputFileName, String header) {
+        this.outputFileName = outputFileName;
+        this.header = (header + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Shard of the calling thread.
+     */
+    RowWriter getLocal() {
+        return local.get();
+    }
+
+    private RowWriter newShard() {
+        synchronized (shards) {
+            RowWriter shard = new RowWriter(new File(outputFileName + ".shard" + shards.size()), header);
+            shards.add(shard);
+            return shard;
+        }
+    }
+
+    List<File> getShardFiles() {
+        List<File> files = new ArrayList<>();
+        synchronized (shards) {
+            for (RowWriter shard : shards) {
+                files.add(shard.file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Flushes and closes all shards, should only be called after all threads are done writing.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (shards) {
+            for (RowWriter shard : shards) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Concatenates shard files into the output file, keeping a single header line, and removes shards.
+     */
+    void merge() throws IOException {
+        merge(outputFileName, header, getShardFiles(), header.length, true);
+    }
+
+    /**
+     * Writes the header followed by the contents of given files, skipping first skipBytes of each,
+     * and optionally removes the files.
+     */
+    static void merge(String outputFileName, byte[] header, List<File> files, long skipBytes,
+                      boolean removeFiles) throws IOException {
+        try (FileChannel out = new FileOutputStream(outputFileName).getChannel()) {
+            out.write(ByteBuffer.wrap(header));
+            for (File file : files) {
+                try (FileChannel in = new FileInputStream(file).getChannel()) {
+                    long position = skipBytes, size = in.size();
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                if (removeFiles && !file.delete()) {
+                    throw new IOException("Failed to remove " + file);
+                }
+            }
+        }
+    }
+}
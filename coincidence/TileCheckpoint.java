@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Splits the pair triangle into numbered square tiles of tileRows x tileRows rows and keeps finished tiles
+ * (significant pair rows and volcano histogram partial) in a checkpoint directory.
+ * <p>
+ * Tiles can be processed in any order by any number of processes sharing the directory. A tile is finished
+ * once its .volcano file exists, it is written last and moved in place atomically. The checkpoint.info file
+ * holds run parameters, resuming with different parameters is an error. Outputs are merged by the single process
+ * that atomically creates the merge.lock file once all tiles are finished.
+ */
+class TileCheckpoint {
+    final File dir;
+    final int rows, tileRows, blocks;
+
+    TileCheckpoint(File dir, int rows, int tileRows, String signature) throws IOException {
+        this.dir = dir;
+        this.rows = rows;
+        this.tileRows = tileRows;
+        this.blocks = (rows + tileRows - 1) / tileRows;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create checkpoint directory " + dir);
+        }
+
+        signature = "rows=" + rows + "\ttile.rows=" + tileRows + "\t" + signature;
+
+        File info = new File(dir, "checkpoint.info");
+        if (!info.exists()) {
+            File tmp = File.createTempFile("checkpoint.info", ".tmp", dir);
+            Files.write(tmp.toPath(), (signature + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), info.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        String existing = new String(Files.readAllBytes(info.toPath()), StandardCharsets.UTF_8).trim();
+        if (!existing.equals(signature)) {
+            throw new IllegalStateException("Checkpoint in " + dir + " was created with different parameters:\n" +
+                    existing + "\nvs current\n" + signature);
+        }
+    }
+
+    int getTileCount() {
+        return (int) PairwiseKernel.triangleOffset(blocks);
+    }
+
+    /**
+     * Row ranges {from1, to1, from2, to2} covered by a given tile.
+     */
+    int[] getRanges(int tile) {
+        int block1 = PairwiseKernel.triangleRow(tile),
+                block2 = (int) (tile - PairwiseKernel.triangleOffset(block1));
+        return new int[]{
+                block1 * tileRows, Math.min(rows, (block1 + 1) * tileRows),
+                block2 * tileRows, Math.min(rows, (block2 + 1) * tileRows)
+        };
+    }
+
+    boolean isDone(int tile) {
+        return getVolcanoFile(tile).exists();
+    }
+
+    int[] getPendingTiles(IntPredicate selection) {
+        List<Integer> pending = new ArrayList<>();
+        for (int tile = 0; tile < getTileCount(); tile++) {
+            if (selection.test(tile) && !isDone(tile)) {
+                pending.add(tile);
+            }
+        }
+        return pending.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    File getRowsFile(int tile) {
+        return new File(dir, "tile" + tile + ".txt");
+    }
+
+    File getVolcanoFile(int tile) {
+        return new File(dir, "tile" + tile + ".volcano");
+    }
+
+    /**
+     * Temporary file for the rows of a tile in progress, unique to the current process.
+     */
+    File getTempRowsFile(int tile) throws IOException {
+        return File.createTempFile("tile" + tile + ".txt", ".tmp", dir);
+    }
+
+    /**
+     * Marks the tile as finished by moving its rows in place and storing its volcano histogram partial.
+     */
+    void complete(int tile, File tempRowsFile, long[] volcanoCounts) throws IOException {
+        Files.move(tempRowsFile.toPath(), getRowsFile(tile).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        File tmp = File.createTempFile("tile" + tile + ".volcano", ".tmp", dir);
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            os.writeInt(volcanoCounts.length);
+            for (long count : volcanoCounts) {
+                os.writeLong(count);
+            }
+        }
+        Files.move(tmp.toPath(), getVolcanoFile(tile).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    long[] readVolcano(int tile) throws IOException {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(getVolcanoFile(tile))))) {
+            long[] counts = new long[is.readInt()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = is.readLong();
+            }
+            return counts;
+        }
+    }
+
+    File getMergeLockFile() {
+        return new File(dir, "merge.lock");
+    }
+
+    /**
+     * Returns true if the current process is the one to merge outputs, false if another one has already claimed it.
+     */
+    boolean claimMerge() throws IOException {
+        return getMergeLockFile().createNewFile();
+    }
+
+    List<File> getRowsFiles() {
+        List<File> files = new ArrayList<>();
+        for (int tile = 0; tile < getTileCount(); tile++) {
+            files.add(getRowsFile(tile));
+        }
+        return files;
+    }
+
+    /**
+     * Parses tile selection: "all", "K/N" for every N-th tile starting from K (0-based),
+     * or a comma-separated list of tiles and inclusive "A-B" ranges.
+     */
+    static IntPredicate parseSelection(String spec) {
+        if (spec.equals("all")) {
+            return tile -> true;
+        }
+
+        if (spec.contains("/")) {
+            String[] parts = spec.split("/");
+            int k = Integer.parseInt(parts[0]), n = Integer.parseInt(parts[1]);
+            if (k < 0 || k >= n) {
+                throw new IllegalArgumentException("Bad tile selection " + spec + ", should be K/N with 0 <= K < N.");
+            }
+            return tile -> tile % n == k;
+        }
+
+        IntPredicate selection = tile -> false;
+        for (String part : spec.split(",")) {
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash)),
+                    to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            selection = selection.or(tile -> tile >= from && tile <= to);
+        }
+        return selection;
+    }
+}
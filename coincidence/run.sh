@@ -1,14 +1,34 @@
-rm PublicCoincidence.class 
-javac PublicCoincidence.java
+rm -f *.class
+javac -sourcepath .:../vdjtools-bin PublicCoincidence.java
 
 # Fetch symlinked
 cd ../samples/
-SS=`readlink -f [HK]* | paste -sd "," -`  # all samples
+SS=`readlink -f [HK]* | paste -sd "," -`  # all samples, VDJtools text or converted by vdjtools-bin/run.sh
 cd ..
 SP=`readlink -f hip.pool.txt`
 
 # Other parameters:
 # freq threshold for publics, P&log10 odds threshold for association - comma-separated
 # file with pooled clonotypes, incl incidence count
+# optional trailing --name=value options:
+# --p-table-cells=N   max number of cached n12 entries in P-value/log-odds lookup tables (default 16777216)
+# --keep-shards                                 leave per-thread .txt.shardN files instead of merging them
+# --matrix=FILE                                 keep the incidence matrix in a memory-mapped FILE (for cohorts larger
+#                                               than the heap); later runs with other P/log odds thresholds reuse it
+#                                               without re-reading samples
+# --checkpoint-dir=DIR                          process the pair triangle by tiles, storing finished tiles in DIR;
+#                                               re-running skips finished tiles, outputs are merged once all are done
+#                                               by the process that creates DIR/merge.lock first
+# --tile-rows=N                                 rows per checkpoint tile side (default 16384)
+# --tiles=all|K/N|A-B,C,...                     subset of tiles to process, e.g. 0/4..3/4 for four JVMs or nodes
+# --log-p-bins=N, --log-odds-bins=N             volcano histogram bins (default 100)
+# --log-p-range=MIN:MAX, --log-odds-range=MIN:MAX  volcano histogram ranges (default -10:0 and -1:1)
+# --lsh=BANDS:ROWS                              approximate mode: only check pairs sharing a MinHash LSH band, e.g.
+#                                               40:2; targets positive associations, volcano only covers candidates,
+#                                               not compatible with --checkpoint-dir
+# --lsh-max-bucket=N                            skip LSH buckets with more than N clonotypes (default 10000)
+# --lsh-recall-rows=N                           estimate recall by exhaustive check of N random clonotypes (default
+#                                               2000, 0 to skip)
+# --lsh-seed=N                                  MinHash seed
 
-java -Xmx200G -cp coincidence/ PublicCoincidence 0.1,0.001,0.3 "$SP" "$SS" hip_assoc
\ No newline at end of file
+java -Xmx200G -cp coincidence/:vdjtools-bin/ PublicCoincidence 0.1,0.001,0.3 "$SP" "$SS" hip_assoc
\ No newline at end of file
@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Memory-mapped reader of a VDJtools sample converted to columnar binary format by {@link ConvertSamples}.
+ * <p>
+ * File layout (big-endian): magic, row count, CDR3aa, V and J dictionary sizes, then count, CDR3aa id, V id and
+ * J id int columns of row count entries each, then CDR3aa, V and J dictionaries, each stored as size + 1 int
+ * offsets followed by ASCII bytes of all entries. Row order is the one of the original sample file.
+ */
+class ColumnarSample {
+    static final long MAGIC = 0x56444A5442494E31L; // "VDJTBIN1"
+    static final int HEADER_BYTES = 24;
+
+    final File file;
+    final int rows;
+    final Dictionary cdr3aa, v, j;
+    private final MappedByteBuffer buffer;
+    private final int countOffset, cdr3Offset, vOffset, jOffset;
+
+    private ColumnarSample(File file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_BYTES || buffer.getLong(0) != MAGIC) {
+            throw new IOException(file + " is not a columnar sample file.");
+        }
+
+        this.rows = buffer.getInt(8);
+        this.countOffset = HEADER_BYTES;
+        this.cdr3Offset = countOffset + 4 * rows;
+        this.vOffset = cdr3Offset + 4 * rows;
+        this.jOffset = vOffset + 4 * rows;
+
+        this.cdr3aa = new Dictionary(jOffset + 4 * rows, buffer.getInt(12));
+        this.v = new Dictionary(cdr3aa.end(), buffer.getInt(16));
+        this.j = new Dictionary(v.end(), buffer.getInt(20));
+
+        if (j.end() != buffer.capacity()) {
+            throw new IOException(file + " is truncated.");
+        }
+    }
+
+    static ColumnarSample open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is larger than 2 GB.");
+            }
+            return new ColumnarSample(file, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    /**
+     * Checks whether a given file starts with the columnar format magic, i.e. can be opened with
+     * {@link #open(File)} rather than parsed as a VDJtools text file.
+     */
+    static boolean isColumnar(File file) throws IOException {
+        byte[] magic = new byte[8];
+        try (FileInputStream is = new FileInputStream(file)) {
+            return is.read(magic) == magic.length && ByteBuffer.wrap(magic).getLong() == MAGIC;
+        }
+    }
+
+    int getCount(int row) {
+        return buffer.getInt(countOffset + 4 * row);
+    }
+
+    int getCdr3aaId(int row) {
+        return buffer.getInt(cdr3Offset + 4 * row);
+    }
+
+    int getVId(int row) {
+        return buffer.getInt(vOffset + 4 * row);
+    }
+
+    int getJId(int row) {
+        return buffer.getInt(jOffset + 4 * row);
+    }
+
+    /**
+     * Dictionary of distinct column values, ids are assigned in order of first occurrence in the sample.
+     */
+    class Dictionary {
+        final int size;
+        private final int offsetsOffset, bytesOffset;
+
+        private Dictionary(int offset, int size) {
+            this.size = size;
+            this.offsetsOffset = offset;
+            this.bytesOffset = offset + 4 * (size + 1);
+        }
+
+        private int end() {
+            return bytesOffset + buffer.getInt(offsetsOffset + 4 * size);
+        }
+
+        int getLength(int id) {
+            return buffer.getInt(offsetsOffset + 4 * (id + 1)) - buffer.getInt(offsetsOffset + 4 * id);
+        }
+
+        /**
+         * Copies bytes of a given entry to dst starting at position 0 and returns its length.
+         */
+        int getBytes(int id, byte[] dst) {
+            int from = buffer.getInt(offsetsOffset + 4 * id),
+                    length = buffer.getInt(offsetsOffset + 4 * (id + 1)) - from;
+            ByteBuffer view = buffer.duplicate();
+            view.position(bytesOffset + from);
+            view.get(dst, 0, length);
+            return length;
+        }
+
+        String get(int id) {
+            byte[] bytes = new byte[getLength(id)];
+            getBytes(id, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts VDJtools sample files to the columnar binary format read by {@link ColumnarSample}.
+ */
+public class ConvertSamples {
+    private static final int COUNT_COL = 0,
+            CDR3AA_COL = 3,
+            V_COL = 4,
+            J_COL = 6;
+
+    public static void main(String[] args) throws IOException {
+        String[] sampleFileNames = args[0].split(",");
+        File outputDir = new File(args[1]);
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Failed to create output directory " + outputDir);
+        }
+
+        AtomicInteger converted = new AtomicInteger();
+
+        IntStream.range(0, sampleFileNames.length).parallel().forEach(i -> {
+            File sample = new File(sampleFileNames[i]);
+            try {
+                convert(sample, new File(outputDir, getOutputName(sample)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            int count = converted.incrementAndGet();
+            if (count % 10 == 0) {
+                System.out.println("[" + (new Date()).toString() + "] Converted " + count + " of " +
+                        sampleFileNames.length +
+                        " samples.");
+            }
+        });
+
+        System.out.println("[" + (new Date()).toString() + "] Done. Converted " + converted.get() +
+                " samples to " + outputDir);
+    }
+
+    static String getOutputName(File sample) {
+        String name = sample.getName();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        if (name.endsWith(".txt")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name + ".vbin";
+    }
+
+    static void convert(File sample, File output) throws IOException {
+        IntColumn counts = new IntColumn(), cdr3aaIds = new IntColumn(), vIds = new IntColumn(),
+                jIds = new IntColumn();
+        DictionaryBuilder cdr3aa = new DictionaryBuilder(), v = new DictionaryBuilder(),
+                j = new DictionaryBuilder();
+
+        InputStream is = new FileInputStream(sample);
+        if (sample.getName().endsWith(".gz")) {
+            is = new GZIPInputStream(is, 1 << 16);
+        }
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.US_ASCII),
+                1 << 20)) {
+            String line;
+
+            br.readLine(); // skip header
+
+            while ((line = br.readLine()) != null) {
+                String[] splitLine = line.split("\t");
+                counts.add(Integer.parseInt(splitLine[COUNT_COL]));
+                cdr3aaIds.add(cdr3aa.getId(splitLine[CDR3AA_COL]));
+                vIds.add(v.getId(splitLine[V_COL]));
+                jIds.add(j.getId(splitLine[J_COL]));
+            }
+        }
+
+        File tmp = File.createTempFile(output.getName(), ".tmp", output.getAbsoluteFile().getParentFile());
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+                1 << 20))) {
+            os.writeLong(ColumnarSample.MAGIC);
+            os.writeInt(counts.size);
+            os.writeInt(cdr3aa.values.size());
+            os.writeInt(v.values.size());
+            os.writeInt(j.values.size());
+            counts.write(os);
+            cdr3aaIds.write(os);
+            vIds.write(os);
+            jIds.write(os);
+            cdr3aa.write(os);
+            v.write(os);
+            j.write(os);
+        }
+
+        if (tmp.length() > Integer.MAX_VALUE) {
+            tmp.delete();
+            throw new IOException("Converted " + sample + " is larger than 2 GB.");
+        }
+
+        Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static class IntColumn {
+        int[] values = new int[1024];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void write(DataOutputStream os) throws IOException {
+            for (int i = 0; i < size; i++) {
+                os.writeInt(values[i]);
+            }
+        }
+    }
+
+    static class DictionaryBuilder {
+        final Map<String, Integer> ids = new HashMap<>();
+        final List<String> values = new ArrayList<>();
+
+        int getId(String value) {
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        void write(DataOutputStream os) throws IOException {
+            int offset = 0;
+            os.writeInt(offset);
+            for (String value : values) {
+                offset += value.length();
+                os.writeInt(offset);
+            }
+            for (String value : values) {
+                os.write(value.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+}
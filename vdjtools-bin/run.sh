@@ -0,0 +1,13 @@
+rm -f *.class
+javac ConvertSamples.java
+
+# Fetch symlinked
+cd ../samples/
+SS=`readlink -f [HK]* | paste -sd "," -`  # all samples
+cd ..
+
+# Other parameters:
+# output directory, one .vbin file per sample; BuildFactors and PublicCoincidence accept converted samples
+# in place of VDJtools text files
+
+java -Xmx8G -cp vdjtools-bin/ ConvertSamples "$SS" samples-bin